@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.crypto;
+
+import org.whispersystems.textsecure.util.Util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Class for streaming a push attachment through encryption.
+ *
+ * Produces the same IV || ciphertext || MAC format as AttachmentCipher, but
+ * only holds one write's worth of ciphertext in memory at a time.
+ */
+
+public class AttachmentCipherOutputStream extends OutputStream {
+
+  private static final int BLOCK_SIZE = 16;
+  private static final int MAC_SIZE   = 32;
+
+  private final OutputStream out;
+  private final Cipher       cipher;
+  private final Mac          mac;
+
+  private boolean closed = false;
+
+  public AttachmentCipherOutputStream(byte[] combinedKeyMaterial, OutputStream out)
+      throws IOException
+  {
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial,
+                                  AttachmentCipher.CIPHER_KEY_SIZE,
+                                  AttachmentCipher.MAC_KEY_SIZE);
+
+      this.out    = out;
+      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.mac    = Mac.getInstance("HmacSHA256");
+
+      this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(parts[0], "AES"));
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      byte[] iv = cipher.getIV();
+      mac.update(iv);
+      out.write(iv);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return the exact number of bytes that encrypting a plaintext of the
+   * given length will write, suitable for a fixed-length upload.
+   */
+  public static long getCiphertextLength(long plaintextLength) {
+    return BLOCK_SIZE + ((plaintextLength / BLOCK_SIZE) + 1) * BLOCK_SIZE + MAC_SIZE;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    byte[] ciphertext = cipher.update(buffer, offset, length);
+
+    if (ciphertext != null) {
+      mac.update(ciphertext);
+      out.write(ciphertext);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+
+    try {
+      byte[] ciphertext = cipher.doFinal();
+
+      mac.update(ciphertext);
+      out.write(ciphertext);
+      out.write(mac.doFinal());
+      out.flush();
+    } catch (IllegalBlockSizeException e) {
+      throw new AssertionError(e);
+    } catch (BadPaddingException e) {
+      throw new AssertionError(e);
+    } finally {
+      out.close();
+    }
+  }
+}
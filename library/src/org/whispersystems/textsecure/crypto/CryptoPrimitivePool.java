@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.crypto;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Hands out per-thread Mac and Cipher instances, re-keyed on every request,
+ * so that hot paths don't pay for a JCE provider lookup on each call.
+ *
+ * An instance returned from here is only valid until the next request for
+ * the same primitive on the same thread, so callers must finish with it
+ * before calling into anything else that might use this pool.
+ */
+public class CryptoPrimitivePool {
+
+  private static final ThreadLocal<Mac> hmacSha256 = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      return createMac("HmacSHA256");
+    }
+  };
+
+  private static final ThreadLocal<Mac> hmacSha1 = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      return createMac("HmacSHA1");
+    }
+  };
+
+  private static final ThreadLocal<Cipher> aesCtr = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return createCipher("AES/CTR/NoPadding");
+    }
+  };
+
+  private static final ThreadLocal<Cipher> aesCbc = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return createCipher("AES/CBC/PKCS5Padding");
+    }
+  };
+
+  public static Mac getHmacSha256(Key key) {
+    return initMac(hmacSha256.get(), key);
+  }
+
+  public static Mac getHmacSha1(Key key) {
+    return initMac(hmacSha1.get(), key);
+  }
+
+  public static Cipher getAesCtr(int mode, Key key, IvParameterSpec iv) {
+    return initCipher(aesCtr.get(), mode, key, iv);
+  }
+
+  public static Cipher getAesCbc(int mode, Key key, IvParameterSpec iv) {
+    return initCipher(aesCbc.get(), mode, key, iv);
+  }
+
+  private static Mac initMac(Mac mac, Key key) {
+    try {
+      mac.init(key);
+      return mac;
+    } catch (java.security.InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static Cipher initCipher(Cipher cipher, int mode, Key key, IvParameterSpec iv) {
+    try {
+      cipher.init(mode, key, iv);
+      return cipher;
+    } catch (java.security.InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static Mac createMac(String algorithm) {
+    try {
+      return Mac.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static Cipher createCipher(String transformation) {
+    try {
+      return Cipher.getInstance(transformation);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
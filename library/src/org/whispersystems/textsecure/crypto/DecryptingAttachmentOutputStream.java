@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.crypto;
+
+import org.whispersystems.textsecure.util.Util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Class for decrypting a push attachment as it arrives, without first
+ * spooling the IV || ciphertext || MAC blob to disk.
+ *
+ * The trailing MAC can only be checked once every byte has been written, so
+ * plaintext is passed through to the wrapped stream before it has been
+ * authenticated.  Callers must call finish() and discard everything written
+ * to the wrapped stream if it throws.
+ */
+
+public class DecryptingAttachmentOutputStream extends OutputStream {
+
+  private static final int BLOCK_SIZE = 16;
+  private static final int MAC_SIZE   = 32;
+
+  private final OutputStream  out;
+  private final SecretKeySpec cipherKey;
+  private final Cipher        cipher;
+  private final Mac           mac;
+
+  private final byte[] iv   = new byte[BLOCK_SIZE];
+  private final byte[] tail = new byte[MAC_SIZE];
+
+  private int     ivLength   = 0;
+  private int     tailLength = 0;
+  private boolean finished   = false;
+
+  public DecryptingAttachmentOutputStream(byte[] combinedKeyMaterial, OutputStream out) {
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial,
+                                  AttachmentCipher.CIPHER_KEY_SIZE,
+                                  AttachmentCipher.MAC_KEY_SIZE);
+
+      this.out       = out;
+      this.cipherKey = new SecretKeySpec(parts[0], "AES");
+      this.cipher    = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.mac       = Mac.getInstance("HmacSHA256");
+
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (finished) throw new IOException("Stream already finished!");
+
+    int total = tailLength + length;
+
+    if (total <= MAC_SIZE) {
+      System.arraycopy(buffer, offset, tail, tailLength, length);
+      tailLength = total;
+      return;
+    }
+
+    // Everything but the last MAC_SIZE bytes seen so far is IV or ciphertext.
+    int bodyLength = total - MAC_SIZE;
+    int fromTail   = Math.min(bodyLength, tailLength);
+    int fromBuffer = bodyLength - fromTail;
+
+    processBody(tail, 0, fromTail);
+    processBody(buffer, offset, fromBuffer);
+
+    int keptTail = tailLength - fromTail;
+
+    System.arraycopy(tail, fromTail, tail, 0, keptTail);
+    System.arraycopy(buffer, offset + fromBuffer, tail, keptTail, length - fromBuffer);
+    tailLength = MAC_SIZE;
+  }
+
+  /**
+   * Verifies the trailing MAC and writes out the final block of plaintext.
+   * Does not close the wrapped stream.
+   */
+  public void finish() throws IOException, InvalidMessageException {
+    if (finished) return;
+    finished = true;
+
+    if (ivLength < BLOCK_SIZE || tailLength < MAC_SIZE) {
+      throw new InvalidMessageException("Message shorter than crypto overhead!");
+    }
+
+    if (!MessageDigest.isEqual(mac.doFinal(), tail)) {
+      throw new InvalidMessageException(new InvalidMacException("MAC doesn't match!"));
+    }
+
+    try {
+      out.write(cipher.doFinal());
+      out.flush();
+    } catch (IllegalBlockSizeException e) {
+      throw new InvalidMessageException(e);
+    } catch (BadPaddingException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  private void processBody(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return;
+
+    mac.update(buffer, offset, length);
+
+    if (ivLength < BLOCK_SIZE) {
+      int ivRead = Math.min(length, BLOCK_SIZE - ivLength);
+
+      System.arraycopy(buffer, offset, iv, ivLength, ivRead);
+      ivLength += ivRead;
+      offset   += ivRead;
+      length   -= ivRead;
+
+      if (ivLength < BLOCK_SIZE) return;
+
+      initializeCipher();
+    }
+
+    if (length > 0) {
+      byte[] plaintext = cipher.update(buffer, offset, length);
+
+      if (plaintext != null) {
+        out.write(plaintext);
+      }
+    }
+  }
+
+  private void initializeCipher() {
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -23,10 +23,11 @@ import org.whispersystems.textsecure.crypto.protocol.CiphertextMessage;
 import org.whispersystems.textsecure.storage.RecipientDevice;
 import org.whispersystems.textsecure.storage.SessionRecordV1;
 import org.whispersystems.textsecure.storage.SessionRecordV2;
+import org.whispersystems.textsecure.util.StripedLock;
 
 public abstract class SessionCipher {
 
-  protected static final Object SESSION_LOCK = new Object();
+  private static final StripedLock SESSION_LOCKS = new StripedLock(32);
 
   public abstract CiphertextMessage encrypt(byte[] paddedMessage);
   public abstract byte[] decrypt(byte[] decodedMessage) throws InvalidMessageException;
@@ -45,4 +46,12 @@ public abstract class SessionCipher {
     }
   }
 
+  /**
+   * Ratchet state for a single device must only be read and updated while
+   * holding this lock.  Sessions with other devices may proceed in parallel.
+   */
+  protected static Object getSessionLock(RecipientDevice recipientDevice) {
+    return SESSION_LOCKS.get(recipientDevice);
+  }
+
 }
\ No newline at end of file
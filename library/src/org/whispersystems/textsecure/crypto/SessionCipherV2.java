@@ -16,18 +16,19 @@ import org.whispersystems.textsecure.storage.RecipientDevice;
 import org.whispersystems.textsecure.storage.SessionRecordV2;
 import org.whispersystems.textsecure.util.Conversions;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class SessionCipherV2 extends SessionCipher {
 
+  private static final int MAX_FUTURE_MESSAGES = 500;
+
   private final Context         context;
   private final MasterSecret    masterSecret;
   private final RecipientDevice recipient;
@@ -43,7 +44,7 @@ public class SessionCipherV2 extends SessionCipher {
 
   @Override
   public CiphertextMessage encrypt(byte[] paddedMessage) {
-    synchronized (SESSION_LOCK) {
+    synchronized (getSessionLock(recipient)) {
       SessionRecordV2 sessionRecord   = getSessionRecord();
       ChainKey        chainKey        = sessionRecord.getSenderChainKey();
       MessageKeys     messageKeys     = chainKey.getMessageKeys();
@@ -74,7 +75,7 @@ public class SessionCipherV2 extends SessionCipher {
 
   @Override
   public byte[] decrypt(byte[] decodedMessage) throws InvalidMessageException {
-    synchronized (SESSION_LOCK) {
+    synchronized (getSessionLock(recipient)) {
       SessionRecordV2  sessionRecord     = getSessionRecord();
       WhisperMessageV2 ciphertextMessage = new WhisperMessageV2(decodedMessage);
       ECPublicKey      theirEphemeral    = ciphertextMessage.getSenderEphemeral();
@@ -88,7 +89,7 @@ public class SessionCipherV2 extends SessionCipher {
       byte[] plaintext = getPlaintext(messageKeys, ciphertextMessage.getBody());
 
       sessionRecord.clearPendingPreKey();
-      sessionRecord.save();
+      sessionRecord.saveDeferred();
 
       return plaintext;
     }
@@ -96,7 +97,7 @@ public class SessionCipherV2 extends SessionCipher {
 
   @Override
   public int getRemoteRegistrationId() {
-    synchronized (SESSION_LOCK) {
+    synchronized (getSessionLock(recipient)) {
       SessionRecordV2 sessionRecord = getSessionRecord();
       return sessionRecord.getRemoteRegistrationId();
     }
@@ -140,14 +141,19 @@ public class SessionCipherV2 extends SessionCipher {
       }
     }
 
-    if (chainKey.getIndex() - counter > 500) {
-      throw new InvalidMessageException("Over 500 messages into the future!");
+    if (counter - chainKey.getIndex() > MAX_FUTURE_MESSAGES) {
+      throw new InvalidMessageException("Over " + MAX_FUTURE_MESSAGES + " messages into the future!");
     }
 
-    while (chainKey.getIndex() < counter) {
-      MessageKeys messageKeys = chainKey.getMessageKeys();
-      sessionRecord.setMessageKeys(theirEphemeral, messageKeys);
-      chainKey = chainKey.getNextChainKey();
+    if (chainKey.getIndex() < counter) {
+      List<MessageKeys> skippedMessageKeys = new LinkedList<MessageKeys>();
+
+      while (chainKey.getIndex() < counter) {
+        skippedMessageKeys.add(chainKey.getMessageKeys());
+        chainKey = chainKey.getNextChainKey();
+      }
+
+      sessionRecord.setMessageKeys(theirEphemeral, skippedMessageKeys);
     }
 
     sessionRecord.setReceiverChainKey(theirEphemeral, chainKey.getNextChainKey());
@@ -182,25 +188,10 @@ public class SessionCipherV2 extends SessionCipher {
   }
 
   private Cipher getCipher(int mode, SecretKeySpec key, int counter)  {
-    try {
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-
-      byte[] ivBytes = new byte[16];
-      Conversions.intToByteArray(ivBytes, 0, counter);
+    byte[] ivBytes = new byte[16];
+    Conversions.intToByteArray(ivBytes, 0, counter);
 
-      IvParameterSpec iv = new IvParameterSpec(ivBytes);
-      cipher.init(mode, key, iv);
-
-      return cipher;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
-    } catch (java.security.InvalidKeyException e) {
-      throw new AssertionError(e);
-    } catch (InvalidAlgorithmParameterException e) {
-      throw new AssertionError(e);
-    }
+    return CryptoPrimitivePool.getAesCtr(mode, key, new IvParameterSpec(ivBytes));
   }
 
 
@@ -17,10 +17,10 @@
 
 package org.whispersystems.textsecure.crypto.kdf;
 
+import org.whispersystems.textsecure.crypto.CryptoPrimitivePool;
+
 import java.io.ByteArrayOutputStream;
 import java.math.BigInteger;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
 import javax.crypto.Mac;
@@ -62,45 +62,30 @@ public class HKDF {
   }
 
   private byte[] extract(byte[] salt, byte[] inputKeyMaterial) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(salt, "HmacSHA256"));
-      return mac.doFinal(inputKeyMaterial);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+    Mac mac = CryptoPrimitivePool.getHmacSha256(new SecretKeySpec(salt, "HmacSHA256"));
+    return mac.doFinal(inputKeyMaterial);
   }
 
   private byte[] expand(byte[] prk, byte[] info, int outputSize) {
-    try {
-      int                   iterations = (int)Math.ceil((double)outputSize/(double)HASH_OUTPUT_SIZE);
-      byte[]                mixin      = new byte[0];
-      ByteArrayOutputStream results    = new ByteArrayOutputStream();
-
-      for (int i=0;i<iterations;i++) {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
-
-        mac.update(mixin);
-        if (info != null) {
-          mac.update(info);
-        }
-        mac.update((byte)i);
-
-        byte[] stepResult = mac.doFinal();
-        results.write(stepResult, 0, stepResult.length);
-
-        mixin = stepResult;
+    int                   iterations = (int)Math.ceil((double)outputSize/(double)HASH_OUTPUT_SIZE);
+    byte[]                mixin      = new byte[0];
+    ByteArrayOutputStream results    = new ByteArrayOutputStream();
+    Mac                   mac        = CryptoPrimitivePool.getHmacSha256(new SecretKeySpec(prk, "HmacSHA256"));
+
+    for (int i=0;i<iterations;i++) {
+      mac.update(mixin);
+      if (info != null) {
+        mac.update(info);
       }
+      mac.update((byte)i);
 
-      return results.toByteArray();
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
+      byte[] stepResult = mac.doFinal();
+      results.write(stepResult, 0, stepResult.length);
+
+      mixin = stepResult;
     }
+
+    return results.toByteArray();
   }
 
 
@@ -1,11 +1,9 @@
 package org.whispersystems.textsecure.crypto.ratchet;
 
+import org.whispersystems.textsecure.crypto.CryptoPrimitivePool;
 import org.whispersystems.textsecure.crypto.kdf.DerivedSecrets;
 import org.whispersystems.textsecure.crypto.kdf.HKDF;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -44,15 +42,7 @@ public class ChainKey {
   }
 
   private byte[] getBaseMaterial(byte[] seed) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(key, "HmacSHA256"));
-
-      return mac.doFinal(seed);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+    Mac mac = CryptoPrimitivePool.getHmacSha256(new SecretKeySpec(key, "HmacSHA256"));
+    return mac.doFinal(seed);
   }
 }
@@ -20,10 +20,11 @@ package org.whispersystems.textsecure.directory;
 import org.whispersystems.textsecure.util.Conversions;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.InvalidKeyException;
@@ -32,6 +33,10 @@ import java.security.NoSuchAlgorithmException;
 /**
  * A simple bloom filter implementation that backs the RedPhone directory.
  *
+ * The file is mapped once, and each hash function's keyed HMAC is set up
+ * once, so an instance is meant to be kept around for repeated lookups.
+ * Lookups reuse scratch buffers and are synchronized.
+ *
  * @author Moxie Marlinspike
  *
  */
@@ -41,14 +46,24 @@ public class BloomFilter {
   private final MappedByteBuffer buffer;
   private final long length;
   private final int hashCount;
+  private final Mac[] macs;
+
+  private final byte[] hashValue   = new byte[20];
+  private       byte[] entityBytes = new byte[32];
 
   public BloomFilter(File bloomFilter, int hashCount)
       throws IOException
   {
-    this.length    = bloomFilter.length();
-    this.buffer    = new FileInputStream(bloomFilter).getChannel()
-                                                     .map(FileChannel.MapMode.READ_ONLY, 0, length);
-    this.hashCount = hashCount;
+    RandomAccessFile file = new RandomAccessFile(bloomFilter, "r");
+
+    try {
+      this.length    = bloomFilter.length();
+      this.buffer    = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      this.hashCount = hashCount;
+      this.macs      = initializeMacs(hashCount);
+    } finally {
+      file.close();
+    }
   }
 
   public int getHashCount() {
@@ -62,20 +77,63 @@ public class BloomFilter {
     return (byteInQuestion & bitOffset) > 0;
   }
 
-  public boolean contains(String entity) {
+  public synchronized boolean contains(String entity) {
+    int entityLength = encode(entity);
+
     try {
       for (int i=0;i<this.hashCount;i++) {
-        Mac mac = Mac.getInstance("HmacSHA1");
-        mac.init(new SecretKeySpec((i+"").getBytes(), "HmacSHA1"));
+        macs[i].update(entityBytes, 0, entityLength);
+        macs[i].doFinal(hashValue, 0);
 
-        byte[] hashValue = mac.doFinal(entity.getBytes());
-        long bitIndex    = Math.abs(Conversions.byteArrayToLong(hashValue, 0)) % (this.length * 8);
+        long bitIndex = Math.abs(Conversions.byteArrayToLong(hashValue, 0)) % (this.length * 8);
 
         if (!isBitSet(bitIndex))
           return false;
       }
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    return true;
+  }
+
+  /**
+   * Encodes the entity into the reusable scratch buffer, avoiding an
+   * allocation for the common case of an ASCII phone number.
+   */
+  private int encode(String entity) {
+    int length = entity.length();
+
+    if (length > entityBytes.length) {
+      entityBytes = new byte[Math.max(length, entityBytes.length * 2)];
+    }
+
+    for (int i=0;i<length;i++) {
+      char c = entity.charAt(i);
+
+      if (c >= 0x80) {
+        byte[] encoded = entity.getBytes();
+        if (encoded.length > entityBytes.length) entityBytes = new byte[encoded.length];
+        System.arraycopy(encoded, 0, entityBytes, 0, encoded.length);
+        return encoded.length;
+      }
+
+      entityBytes[i] = (byte)c;
+    }
+
+    return length;
+  }
+
+  private static Mac[] initializeMacs(int hashCount) {
+    try {
+      Mac[] macs = new Mac[hashCount];
+
+      for (int i=0;i<hashCount;i++) {
+        macs[i] = Mac.getInstance("HmacSHA1");
+        macs[i].init(new SecretKeySpec((i+"").getBytes(), "HmacSHA1"));
+      }
 
-      return true;
+      return macs;
     } catch (NoSuchAlgorithmException e) {
       throw new AssertionError(e);
     } catch (InvalidKeyException e) {
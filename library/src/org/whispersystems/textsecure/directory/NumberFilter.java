@@ -56,6 +56,7 @@ public class NumberFilter {
   private static final String DIRECTORY_META_FILE = "directory.stat";
 
   private File bloomFilter;
+  private BloomFilter filter;
   private String version;
   private long capacity;
   private int hashCount;
@@ -76,7 +77,7 @@ public class NumberFilter {
       if      (bloomFilter == null)                    return false;
       else if (number == null || number.length() == 0) return false;
 
-      return new BloomFilter(bloomFilter, hashCount).contains(number);
+      return getFilter().contains(number);
     } catch (IOException ioe) {
       Log.w("NumberFilter", ioe);
       return false;
@@ -88,7 +89,7 @@ public class NumberFilter {
       if  (bloomFilter == null)                    return false;
       if  (numbers == null || numbers.size() == 0) return false;
 
-      BloomFilter filter = new BloomFilter(bloomFilter, hashCount);
+      BloomFilter filter = getFilter();
 
       for (String number : numbers) {
         if (!filter.contains(number)) {
@@ -103,6 +104,36 @@ public class NumberFilter {
     }
   }
 
+  /**
+   * @return an array where each element is true if the number at the same
+   * index is in the directory.
+   */
+  public synchronized boolean[] containsNumbers(String[] numbers) {
+    boolean[] results = new boolean[numbers.length];
+
+    try {
+      if (bloomFilter == null) return results;
+
+      BloomFilter filter = getFilter();
+
+      for (int i=0;i<numbers.length;i++) {
+        results[i] = numbers[i] != null && numbers[i].length() != 0 && filter.contains(numbers[i]);
+      }
+    } catch (IOException ioe) {
+      Log.w("NumberFilter", ioe);
+    }
+
+    return results;
+  }
+
+  private BloomFilter getFilter() throws IOException {
+    if (filter == null) {
+      filter = new BloomFilter(bloomFilter, hashCount);
+    }
+
+    return filter;
+  }
+
   public synchronized void update(DirectoryDescriptor descriptor, File compressedData) {
     try {
       File             uncompressed = File.createTempFile("directory", ".dat", context.getFilesDir());
@@ -132,6 +163,7 @@ public class NumberFilter {
       this.bloomFilter.delete();
 
     this.bloomFilter = bloomFilter;
+    this.filter      = null;
     this.capacity    = capacity;
     this.hashCount   = hashCount;
     this.version     = version;
@@ -2,6 +2,7 @@ package org.whispersystems.textsecure.push;
 
 import android.util.Log;
 
+import org.whispersystems.textsecure.crypto.CryptoPrimitivePool;
 import org.whispersystems.textsecure.crypto.InvalidVersionException;
 import org.whispersystems.textsecure.util.Base64;
 import org.whispersystems.textsecure.push.PushMessageProtos.IncomingPushMessageSignal;
@@ -11,13 +12,9 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 public class IncomingEncryptedPushMessage {
@@ -64,19 +61,10 @@ public class IncomingEncryptedPushMessage {
       System.arraycopy(ciphertext, IV_OFFSET, ivBytes, 0, ivBytes.length);
       IvParameterSpec iv = new IvParameterSpec(ivBytes);
 
-      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      cipher.init(Cipher.DECRYPT_MODE, cipherKey, iv);
+      Cipher cipher = CryptoPrimitivePool.getAesCbc(Cipher.DECRYPT_MODE, cipherKey, iv);
 
       return cipher.doFinal(ciphertext, CIPHERTEXT_OFFSET,
                             ciphertext.length - VERSION_LENGTH - IV_LENGTH - MAC_SIZE);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
-    } catch (InvalidAlgorithmParameterException e) {
-      throw new AssertionError(e);
     } catch (IllegalBlockSizeException e) {
       throw new AssertionError(e);
     } catch (BadPaddingException e) {
@@ -86,32 +74,25 @@ public class IncomingEncryptedPushMessage {
   }
 
   private void verifyMac(byte[] ciphertext, SecretKeySpec macKey) throws IOException {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(macKey);
+    Mac mac = CryptoPrimitivePool.getHmacSha256(macKey);
 
-      if (ciphertext.length < MAC_SIZE + 1)
-        throw new IOException("Invalid MAC!");
+    if (ciphertext.length < MAC_SIZE + 1)
+      throw new IOException("Invalid MAC!");
 
-      mac.update(ciphertext, 0, ciphertext.length - MAC_SIZE);
+    mac.update(ciphertext, 0, ciphertext.length - MAC_SIZE);
 
-      byte[] ourMacFull  = mac.doFinal();
-      byte[] ourMacBytes = new byte[MAC_SIZE];
-      System.arraycopy(ourMacFull, 0, ourMacBytes, 0, ourMacBytes.length);
+    byte[] ourMacFull  = mac.doFinal();
+    byte[] ourMacBytes = new byte[MAC_SIZE];
+    System.arraycopy(ourMacFull, 0, ourMacBytes, 0, ourMacBytes.length);
 
-      byte[] theirMacBytes = new byte[MAC_SIZE];
-      System.arraycopy(ciphertext, ciphertext.length-MAC_SIZE, theirMacBytes, 0, theirMacBytes.length);
+    byte[] theirMacBytes = new byte[MAC_SIZE];
+    System.arraycopy(ciphertext, ciphertext.length-MAC_SIZE, theirMacBytes, 0, theirMacBytes.length);
 
-      Log.w("IncomingEncryptedPushMessage", "Our MAC: " + Hex.toString(ourMacBytes));
-      Log.w("IncomingEncryptedPushMessage", "Thr MAC: " + Hex.toString(theirMacBytes));
+    Log.w("IncomingEncryptedPushMessage", "Our MAC: " + Hex.toString(ourMacBytes));
+    Log.w("IncomingEncryptedPushMessage", "Thr MAC: " + Hex.toString(theirMacBytes));
 
-      if (!Arrays.equals(ourMacBytes, theirMacBytes)) {
-        throw new IOException("Invalid MAC compare!");
-      }
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
+    if (!Arrays.equals(ourMacBytes, theirMacBytes)) {
+      throw new IOException("Invalid MAC compare!");
     }
   }
 
@@ -7,7 +7,10 @@ import com.google.thoughtcrimegson.Gson;
 import com.google.thoughtcrimegson.JsonParseException;
 
 import org.apache.http.conn.ssl.StrictHostnameVerifier;
+import org.whispersystems.textsecure.crypto.AttachmentCipherOutputStream;
+import org.whispersystems.textsecure.crypto.DecryptingAttachmentOutputStream;
 import org.whispersystems.textsecure.crypto.IdentityKey;
+import org.whispersystems.textsecure.crypto.InvalidMessageException;
 import org.whispersystems.textsecure.storage.PreKeyRecord;
 import org.whispersystems.textsecure.util.Base64;
 import org.whispersystems.textsecure.util.Util;
@@ -26,12 +29,19 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
 public class PushServiceSocket {
@@ -50,20 +60,25 @@ public class PushServiceSocket {
 
   private static final boolean ENFORCE_SSL = true;
 
+  private static final Map<TrustStore, SSLSocketFactory> socketFactories =
+      new HashMap<TrustStore, SSLSocketFactory>();
+
+  private static final ExecutorService preKeyExecutor = Util.newIdleTimeoutExecutor(4);
+
   private final Context context;
   private final String serviceUrl;
   private final String localNumber;
   private final String password;
-  private final TrustManagerFactory trustManagerFactory;
+  private final SSLSocketFactory socketFactory;
 
   public PushServiceSocket(Context context, String serviceUrl, TrustStore trustStore,
                            String localNumber, String password)
   {
-    this.context             = context.getApplicationContext();
-    this.serviceUrl          = serviceUrl;
-    this.localNumber         = localNumber;
-    this.password            = password;
-    this.trustManagerFactory = initializeTrustManagerFactory(trustStore);
+    this.context       = context.getApplicationContext();
+    this.serviceUrl    = serviceUrl;
+    this.localNumber   = localNumber;
+    this.password      = password;
+    this.socketFactory = getSocketFactory(trustStore);
   }
 
   public void createAccount(boolean voice) throws IOException {
@@ -170,6 +185,51 @@ public class PushServiceSocket {
     }
   }
 
+  /**
+   * Fetches a prekey for each of the given devices, issuing the requests
+   * concurrently over the shared connection pool.  Unlike the "*" lookup in
+   * getPreKeys(), this only consumes one-time prekeys for the devices asked for.
+   *
+   * @return the prekeys, in the same order as the destinations.
+   */
+  public List<PreKeyEntity> getPreKeys(List<PushAddress> destinations) throws IOException {
+    if (destinations.size() == 1) {
+      List<PreKeyEntity> results = new LinkedList<PreKeyEntity>();
+      results.add(getPreKey(destinations.get(0)));
+      return results;
+    }
+
+    List<Future<PreKeyEntity>> futures = new LinkedList<Future<PreKeyEntity>>();
+    List<PreKeyEntity>         results = new LinkedList<PreKeyEntity>();
+
+    for (final PushAddress destination : destinations) {
+      futures.add(preKeyExecutor.submit(new Callable<PreKeyEntity>() {
+        @Override
+        public PreKeyEntity call() throws IOException {
+          return getPreKey(destination);
+        }
+      }));
+    }
+
+    try {
+      for (Future<PreKeyEntity> future : futures) {
+        results.add(future.get());
+      }
+
+      return results;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)      throw (IOException)e.getCause();
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      throw new AssertionError(e);
+    } finally {
+      for (Future<PreKeyEntity> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
   public long sendAttachment(PushAttachmentData attachment) throws IOException {
     String               response      = makeRequest(String.format(ATTACHMENT_PATH, ""), "GET", null);
     AttachmentDescriptor attachmentKey = new Gson().fromJson(response, AttachmentDescriptor.class);
@@ -180,12 +240,66 @@ public class PushServiceSocket {
 
     Log.w("PushServiceSocket", "Got attachment content location: " + attachmentKey.getLocation());
 
-    uploadExternalFile("PUT", attachmentKey.getLocation(), attachment.getData());
+    uploadAttachment("PUT", attachmentKey.getLocation(), attachment.getData(),
+                     attachment.getDataSize(), attachment.getKey());
 
     return attachmentKey.getId();
   }
 
   public File retrieveAttachment(String relay, long attachmentId) throws IOException {
+    String location   = getAttachmentLocation(relay, attachmentId);
+    File   attachment = File.createTempFile("attachment", ".tmp", context.getFilesDir());
+    attachment.deleteOnExit();
+
+    downloadExternalFile(location, attachment);
+
+    return attachment;
+  }
+
+  /**
+   * Downloads an attachment and decrypts it as it arrives, writing plaintext
+   * to the destination.  If this throws, anything already written to the
+   * destination is unauthenticated and must be discarded.
+   */
+  public void retrieveAttachment(String relay, long attachmentId, byte[] key,
+                                 OutputStream destination, ProgressListener listener)
+      throws IOException, InvalidMessageException
+  {
+    String            location   = getAttachmentLocation(relay, attachmentId);
+    HttpURLConnection connection = (HttpURLConnection) new URL(location).openConnection();
+    connection.setRequestProperty("Content-Type", "application/octet-stream");
+    connection.setRequestMethod("GET");
+    connection.setDoInput(true);
+
+    try {
+      if (connection.getResponseCode() != 200) {
+        throw new IOException("Bad response: " + connection.getResponseCode());
+      }
+
+      DecryptingAttachmentOutputStream output = new DecryptingAttachmentOutputStream(key, destination);
+      InputStream                      input  = connection.getInputStream();
+      long                             total  = connection.getContentLength();
+      long                             count  = 0;
+      byte[]                           buffer = new byte[4096];
+      int                              read;
+
+      while ((read = input.read(buffer)) != -1) {
+        output.write(buffer, 0, read);
+        count += read;
+
+        if (listener != null) {
+          listener.onProgress(count, total);
+        }
+      }
+
+      output.finish();
+      Log.w("PushServiceSocket", "Streamed attachment: " + attachmentId + " (" + count + " bytes)");
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private String getAttachmentLocation(String relay, long attachmentId) throws IOException {
     String path = String.format(ATTACHMENT_PATH, String.valueOf(attachmentId));
 
     if (!Util.isEmpty(relay)) {
@@ -197,12 +311,7 @@ public class PushServiceSocket {
 
     Log.w("PushServiceSocket", "Attachment: " + attachmentId + " is at: " + descriptor.getLocation());
 
-    File attachment = File.createTempFile("attachment", ".tmp", context.getFilesDir());
-    attachment.deleteOnExit();
-
-    downloadExternalFile(descriptor.getLocation(), attachment);
-
-    return attachment;
+    return descriptor.getLocation();
   }
 
   public List<ContactTokenDetails> retrieveDirectory(Set<String> contactTokens) {
@@ -257,19 +366,27 @@ public class PushServiceSocket {
     }
   }
 
-  private void uploadExternalFile(String method, String url, byte[] data)
+  private void uploadAttachment(String method, String url, InputStream data, long dataSize, byte[] key)
     throws IOException
   {
     URL                uploadUrl  = new URL(url);
     HttpsURLConnection connection = (HttpsURLConnection) uploadUrl.openConnection();
     connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode((int)AttachmentCipherOutputStream.getCiphertextLength(dataSize));
     connection.setRequestMethod(method);
     connection.setRequestProperty("Content-Type", "application/octet-stream");
     connection.connect();
 
     try {
-      OutputStream out = connection.getOutputStream();
-      out.write(data);
+      OutputStream out    = new AttachmentCipherOutputStream(key, connection.getOutputStream());
+      byte[]       buffer = new byte[4096];
+      int          read;
+
+      while ((read = data.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+
+      data.close();
       out.close();
 
       if (connection.getResponseCode() != 200) {
@@ -284,11 +401,10 @@ public class PushServiceSocket {
       throws IOException
   {
     HttpURLConnection connection = makeBaseRequest(urlFragment, method, body);
-    String            response   = Util.readFully(connection.getInputStream());
 
-    connection.disconnect();
-
-    return response;
+    // Reading the body to the end and closing it, rather than calling
+    // disconnect(), returns the connection to the keep-alive pool.
+    return Util.readFully(connection.getInputStream());
   }
 
   private HttpURLConnection makeBaseRequest(String urlFragment, String method, String body)
@@ -347,9 +463,6 @@ public class PushServiceSocket {
 
   private HttpURLConnection getConnection(String urlFragment, String method) throws IOException {
     try {
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, trustManagerFactory.getTrustManagers(), null);
-
       URL url = new URL(String.format("%s%s", serviceUrl, urlFragment));
       Log.w("PushServiceSocket", "Push service URL: " + serviceUrl);
       Log.w("PushServiceSocket", "Opening URL: " + url);
@@ -357,7 +470,7 @@ public class PushServiceSocket {
       HttpURLConnection connection = (HttpURLConnection)url.openConnection();
 
       if (ENFORCE_SSL) {
-        ((HttpsURLConnection)connection).setSSLSocketFactory(context.getSocketFactory());
+        ((HttpsURLConnection)connection).setSSLSocketFactory(socketFactory);
         ((HttpsURLConnection)connection).setHostnameVerifier(new StrictHostnameVerifier());
       }
 
@@ -369,10 +482,6 @@ public class PushServiceSocket {
       }
 
       return connection;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (KeyManagementException e) {
-      throw new AssertionError(e);
     } catch (MalformedURLException e) {
       throw new AssertionError(e);
     }
@@ -386,7 +495,32 @@ public class PushServiceSocket {
     }
   }
 
-  private TrustManagerFactory initializeTrustManagerFactory(TrustStore trustStore) {
+  /**
+   * Connections are only pooled by HttpURLConnection when they were created
+   * by the same socket factory, and TLS sessions are only resumed within
+   * one SSLContext, so every socket shares the factory for its trust store.
+   */
+  private static synchronized SSLSocketFactory getSocketFactory(TrustStore trustStore) {
+    SSLSocketFactory socketFactory = socketFactories.get(trustStore);
+
+    if (socketFactory == null) {
+      try {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, initializeTrustManagerFactory(trustStore).getTrustManagers(), null);
+
+        socketFactory = context.getSocketFactory();
+        socketFactories.put(trustStore, socketFactory);
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      } catch (KeyManagementException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    return socketFactory;
+  }
+
+  private static TrustManagerFactory initializeTrustManagerFactory(TrustStore trustStore) {
     try {
       InputStream keyStoreInputStream = trustStore.getKeyStoreInputStream();
       KeyStore    keyStore            = KeyStore.getInstance("BKS");
@@ -431,6 +565,13 @@ public class PushServiceSocket {
     }
   }
 
+  public interface ProgressListener {
+    /**
+     * @param total the expected number of bytes, or -1 if unknown.
+     */
+    public void onProgress(long transferred, long total);
+  }
+
   public interface TrustStore {
     public InputStream getKeyStoreInputStream();
     public String getKeyStorePassword();
@@ -28,4 +28,17 @@ public class RecipientDevice {
       }
     };
   }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == null || !(other instanceof RecipientDevice)) return false;
+
+    RecipientDevice that = (RecipientDevice)other;
+    return this.recipientId == that.recipientId && this.deviceId == that.deviceId;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int)(recipientId ^ (recipientId >>> 32)) * 31 + deviceId;
+  }
 }
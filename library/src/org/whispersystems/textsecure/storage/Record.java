@@ -34,6 +34,8 @@ public abstract class Record {
   protected static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
   public    static final String PREKEY_DIRECTORY      = "prekeys";
 
+  protected static final String TEMPORARY_SUFFIX = ".tmp";
+
   protected final String address;
   protected final String directory;
   protected final Context context;
@@ -64,10 +66,31 @@ public abstract class Record {
     return new FileInputStream(getAddressFile().getAbsolutePath());
   }
 
+  protected RandomAccessFile openTemporaryFile() throws FileNotFoundException {
+    return new RandomAccessFile(getTemporaryFile(), "rw");
+  }
+
+  /**
+   * Atomically replaces this record with the contents of its temporary file,
+   * which the caller should already have synced to disk.
+   */
+  protected void commitTemporaryFile() throws IOException {
+    File temporaryFile = getTemporaryFile();
+    File addressFile   = getAddressFile();
+
+    if (!temporaryFile.renameTo(addressFile)) {
+      throw new IOException("Unable to rename " + temporaryFile + " to " + addressFile);
+    }
+  }
+
   private File getAddressFile() {
     return getAddressFile(context, directory, address);
   }
 
+  private File getTemporaryFile() {
+    return getAddressFile(context, directory, address + TEMPORARY_SUFFIX);
+  }
+
   private static File getAddressFile(Context context, String directory, String address) {
     File parent = getParentDirectory(context, directory);
 
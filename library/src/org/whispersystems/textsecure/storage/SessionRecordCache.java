@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.storage;
+
+import org.whispersystems.textsecure.storage.StorageProtos.SessionStructure;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, in-memory cache of decoded session structures, keyed by record
+ * name, which also tracks records that have been modified but not yet written
+ * back to disk.
+ *
+ * Session structures are immutable protobufs, so cached entries can be shared
+ * between SessionRecordV2 instances without copying.  A record with a pending
+ * write is never dropped from the cache until that write has been taken by
+ * the flusher, so a lookup never observes state older than the last save.
+ */
+class SessionRecordCache {
+
+  private static final int MAX_ENTRIES = 64;
+
+  private final Map<String, SessionStructure> entries =
+      new LinkedHashMap<String, SessionStructure>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SessionStructure> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  private final Map<String, PendingWrite> pendingWrites = new HashMap<String, PendingWrite>();
+
+  private boolean flushScheduled = false;
+
+  public synchronized SessionStructure get(String name) {
+    PendingWrite pendingWrite = pendingWrites.get(name);
+
+    if (pendingWrite != null) {
+      return pendingWrite.getStructure();
+    }
+
+    return entries.get(name);
+  }
+
+  public synchronized SessionStructure putIfAbsent(String name, SessionStructure structure) {
+    SessionStructure existing = get(name);
+
+    if (existing != null) {
+      return existing;
+    }
+
+    entries.put(name, structure);
+    return structure;
+  }
+
+  public synchronized void put(String name, SessionStructure structure) {
+    entries.put(name, structure);
+    pendingWrites.remove(name);
+  }
+
+  /**
+   * @return true if no flush was already scheduled, meaning the caller is
+   * responsible for scheduling one.
+   */
+  public synchronized boolean putDeferred(SessionRecordV2 record, String name,
+                                          SessionStructure structure)
+  {
+    boolean scheduleFlush = !flushScheduled;
+
+    entries.put(name, structure);
+    pendingWrites.put(name, new PendingWrite(record, structure));
+    flushScheduled = true;
+
+    return scheduleFlush;
+  }
+
+  public synchronized void remove(String name) {
+    entries.remove(name);
+    pendingWrites.remove(name);
+  }
+
+  /**
+   * @return the names of all records with a pending write.  Any record saved
+   * after this call will schedule another flush.
+   */
+  public synchronized List<String> beginFlush() {
+    flushScheduled = false;
+    return new LinkedList<String>(pendingWrites.keySet());
+  }
+
+  public synchronized PendingWrite takePendingWrite(String name) {
+    return pendingWrites.remove(name);
+  }
+
+  /**
+   * Drops all cached entries.  Pending writes are left for the flusher.
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  static class PendingWrite {
+    private final SessionRecordV2  record;
+    private final SessionStructure structure;
+
+    public PendingWrite(SessionRecordV2 record, SessionStructure structure) {
+      this.record    = record;
+      this.structure = structure;
+    }
+
+    public SessionRecordV2 getRecord() {
+      return record;
+    }
+
+    public SessionStructure getStructure() {
+      return structure;
+    }
+  }
+}
@@ -38,6 +38,7 @@ import org.whispersystems.textsecure.crypto.ratchet.RootKey;
 import org.whispersystems.textsecure.storage.StorageProtos.SessionStructure.Chain;
 import org.whispersystems.textsecure.storage.StorageProtos.SessionStructure.PendingKeyExchange;
 import org.whispersystems.textsecure.storage.StorageProtos.SessionStructure.PendingPreKey;
+import org.whispersystems.textsecure.util.StripedLock;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -48,6 +49,9 @@ import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.spec.SecretKeySpec;
 
@@ -59,9 +63,15 @@ import javax.crypto.spec.SecretKeySpec;
 
 public class SessionRecordV2 extends Record {
 
-  private static final Object FILE_LOCK = new Object();
+  private static final StripedLock FILE_LOCKS = new StripedLock(32);
   private static final int CURRENT_VERSION = 1;
 
+  private static final int MAX_MESSAGE_KEYS = 2000;
+
+  private static final long                     FLUSH_DELAY_MILLIS = 500;
+  private static final SessionRecordCache       cache              = new SessionRecordCache();
+  private static final ScheduledExecutorService flusher            = Executors.newSingleThreadScheduledExecutor();
+
   private final MasterSecret masterSecret;
   private StorageProtos.SessionStructure sessionStructure =
       StorageProtos.SessionStructure.newBuilder().build();
@@ -88,6 +98,8 @@ public class SessionRecordV2 extends Record {
     if (children == null) return results;
 
     for (String child : children) {
+      if (child.endsWith(TEMPORARY_SUFFIX)) continue;
+
       try {
         String[] parts              = child.split("[.]", 2);
         long     sessionRecipientId = Long.parseLong(parts[0]);
@@ -106,17 +118,54 @@ public class SessionRecordV2 extends Record {
   public static void deleteAll(Context context, CanonicalRecipient recipient) {
     List<Integer> devices = getSessionSubDevices(context, recipient);
 
-    delete(context, SESSIONS_DIRECTORY_V2, getRecordName(recipient.getRecipientId(),
-                                                         RecipientDevice.DEFAULT_DEVICE_ID));
+    deleteRecord(context, getRecordName(recipient.getRecipientId(),
+                                        RecipientDevice.DEFAULT_DEVICE_ID));
 
     for (int device : devices) {
-      delete(context, SESSIONS_DIRECTORY_V2, getRecordName(recipient.getRecipientId(), device));
+      deleteRecord(context, getRecordName(recipient.getRecipientId(), device));
     }
   }
 
   public static void delete(Context context, RecipientDevice recipientDevice) {
-    delete(context, SESSIONS_DIRECTORY_V2, getRecordName(recipientDevice.getRecipientId(),
-                                                         recipientDevice.getDeviceId()));
+    deleteRecord(context, getRecordName(recipientDevice.getRecipientId(),
+                                        recipientDevice.getDeviceId()));
+  }
+
+  private static void deleteRecord(Context context, String recordName) {
+    synchronized (FILE_LOCKS.get(recordName)) {
+      cache.remove(recordName);
+      delete(context, SESSIONS_DIRECTORY_V2, recordName);
+    }
+  }
+
+  /**
+   * Synchronously writes any session state that is still waiting in the
+   * write-behind queue.
+   */
+  public static void flushPendingWrites() {
+    for (String recordName : cache.beginFlush()) {
+      synchronized (FILE_LOCKS.get(recordName)) {
+        SessionRecordCache.PendingWrite pendingWrite = cache.takePendingWrite(recordName);
+
+        if (pendingWrite == null) continue;
+
+        try {
+          pendingWrite.getRecord().writeStructure(pendingWrite.getStructure());
+        } catch (IOException ioe) {
+          Log.w("SessionRecordV2", ioe);
+        }
+      }
+    }
+  }
+
+  /**
+   * Flushes any pending writes and then drops all decoded session state
+   * from memory, e.g. when the master secret is being cleared.  Records
+   * saved concurrently remain queued until the next scheduled flush.
+   */
+  public static void clearCache() {
+    flushPendingWrites();
+    cache.clear();
   }
 
   public static boolean hasSession(Context context, MasterSecret masterSecret,
@@ -132,6 +181,11 @@ public class SessionRecordV2 extends Record {
         new SessionRecordV2(context, masterSecret, recipientId, deviceId).hasSenderChain();
   }
 
+  @Override
+  public void delete() {
+    deleteRecord(context, address);
+  }
+
   public void clear() {
     this.sessionStructure = StorageProtos.SessionStructure.newBuilder().build();
   }
@@ -367,16 +421,37 @@ public class SessionRecordV2 extends Record {
   }
 
   public void setMessageKeys(ECPublicKey senderEphemeral, MessageKeys messageKeys) {
-    Pair<Chain,Integer> chainAndIndex       = getReceiverChain(senderEphemeral);
-    Chain               chain               = chainAndIndex.first;
-    Chain.MessageKey    messageKeyStructure = Chain.MessageKey.newBuilder()
-                                                   .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
-                                                   .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
-                                                   .setIndex(messageKeys.getCounter())
-                                                   .build();
+    List<MessageKeys> messageKeysList = new LinkedList<MessageKeys>();
+    messageKeysList.add(messageKeys);
+
+    setMessageKeys(senderEphemeral, messageKeysList);
+  }
+
+  /**
+   * Stores a run of skipped message keys on a receiver chain in a single
+   * update.  If that leaves the chain with more than MAX_MESSAGE_KEYS stored
+   * keys, the oldest are discarded.
+   */
+  public void setMessageKeys(ECPublicKey senderEphemeral, List<MessageKeys> messageKeysList) {
+    Pair<Chain,Integer>    chainAndIndex        = getReceiverChain(senderEphemeral);
+    Chain                  chain                = chainAndIndex.first;
+    List<Chain.MessageKey> messageKeyStructures = new LinkedList<Chain.MessageKey>(chain.getMessageKeysList());
+
+    for (MessageKeys messageKeys : messageKeysList) {
+      messageKeyStructures.add(Chain.MessageKey.newBuilder()
+                                    .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
+                                    .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
+                                    .setIndex(messageKeys.getCounter())
+                                    .build());
+    }
+
+    while (messageKeyStructures.size() > MAX_MESSAGE_KEYS) {
+      messageKeyStructures.remove(0);
+    }
 
     Chain updatedChain = chain.toBuilder()
-                              .addMessageKeys(messageKeyStructure)
+                              .clearMessageKeys()
+                              .addAllMessageKeys(messageKeyStructures)
                               .build();
 
     this.sessionStructure = this.sessionStructure.toBuilder()
@@ -517,27 +592,68 @@ public class SessionRecordV2 extends Record {
     return this.sessionStructure.getLocalRegistrationId();
   }
 
+  /**
+   * Writes this record through to disk, and only returns once it has been
+   * synced.  This must be used for any change that could otherwise result
+   * in sending chain keys being reused after a crash.
+   */
   public void save() {
-    synchronized (FILE_LOCK) {
+    synchronized (FILE_LOCKS.get(address)) {
       try {
-        RandomAccessFile file = openRandomAccessFile();
-        FileChannel out       = file.getChannel();
-        out.position(0);
-
-        MasterCipher cipher = new MasterCipher(masterSecret);
-        writeInteger(CURRENT_VERSION, out);
-        writeBlob(cipher.encryptBytes(sessionStructure.toByteArray()), out);
-
-        out.truncate(out.position());
-        file.close();
+        cache.put(address, sessionStructure);
+        writeStructure(sessionStructure);
       } catch (IOException ioe) {
         throw new IllegalArgumentException(ioe);
       }
     }
   }
 
+  /**
+   * Updates the cached copy of this record and schedules a write-behind.
+   * Repeated saves of the same record before the flush are coalesced into a
+   * single write.  State saved this way can be lost in a crash, so it's
+   * only appropriate for receiving chain advances.
+   */
+  public void saveDeferred() {
+    if (cache.putDeferred(this, address, sessionStructure)) {
+      flusher.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flushPendingWrites();
+        }
+      }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void writeStructure(StorageProtos.SessionStructure structure) throws IOException {
+    RandomAccessFile file = openTemporaryFile();
+
+    try {
+      FileChannel out = file.getChannel();
+      out.position(0);
+
+      MasterCipher cipher = new MasterCipher(masterSecret);
+      writeInteger(CURRENT_VERSION, out);
+      writeBlob(cipher.encryptBytes(structure.toByteArray()), out);
+
+      out.truncate(out.position());
+      out.force(true);
+    } finally {
+      file.close();
+    }
+
+    commitTemporaryFile();
+  }
+
   private void loadData() {
-    synchronized (FILE_LOCK) {
+    StorageProtos.SessionStructure cached = cache.get(address);
+
+    if (cached != null) {
+      this.sessionStructure = cached;
+      return;
+    }
+
+    synchronized (FILE_LOCKS.get(address)) {
       try {
         FileInputStream in = this.openInputStream();
         int versionMarker  = readInteger(in);
@@ -550,8 +666,10 @@ public class SessionRecordV2 extends Record {
         byte[] encryptedBlob = readBlob(in);
 
 
-        this.sessionStructure = StorageProtos.SessionStructure
-                                             .parseFrom(cipher.decryptBytes(encryptedBlob));
+        StorageProtos.SessionStructure structure = StorageProtos.SessionStructure
+                                                                .parseFrom(cipher.decryptBytes(encryptedBlob));
+
+        this.sessionStructure = cache.putIfAbsent(address, structure);
 
         in.close();
       } catch (FileNotFoundException e) {
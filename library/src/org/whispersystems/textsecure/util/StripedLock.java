@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.util;
+
+/**
+ * A fixed set of monitors, one of which is selected by a key's hash.
+ *
+ * Equal keys always map to the same monitor, so work for one key is
+ * serialized, while work for unrelated keys will usually proceed in
+ * parallel.  Callers must never hold two locks from the same instance.
+ */
+public class StripedLock {
+
+  private final Object[] stripes;
+
+  public StripedLock(int stripeCount) {
+    this.stripes = new Object[stripeCount];
+
+    for (int i=0;i<stripeCount;i++) {
+      stripes[i] = new Object();
+    }
+  }
+
+  public Object get(Object key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+    return stripes[(hash & 0x7fffffff) % stripes.length];
+  }
+}
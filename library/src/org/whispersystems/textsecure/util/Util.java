@@ -16,6 +16,10 @@ import java.text.ParseException;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Util {
 
@@ -201,4 +205,16 @@ public class Util {
       throw new AssertionError(e);
     }
   }
+
+  /**
+   * A fixed-size pool whose threads exit once they've been idle for a while,
+   * for work that comes in bursts and shouldn't pin threads between them.
+   */
+  public static ExecutorService newIdleTimeoutExecutor(int threadCount) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                                                         30, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
 }
@@ -16,7 +16,9 @@ import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.CursorAdapter;
+import android.widget.ListView;
 
 import com.actionbarsherlock.app.SherlockListFragment;
 
@@ -42,6 +44,7 @@ public class ConversationFragment extends SherlockListFragment
   private MasterSecret masterSecret;
   private Recipients   recipients;
   private long         threadId;
+  private boolean      loadingOlder;
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle bundle) {
@@ -98,8 +101,9 @@ public class ConversationFragment extends SherlockListFragment
   }
 
   public void reload(Recipients recipients, long threadId) {
-    this.recipients = recipients;
-    this.threadId   = threadId;
+    this.recipients   = recipients;
+    this.threadId     = threadId;
+    this.loadingOlder = false;
 
     initializeListAdapter();
   }
@@ -201,6 +205,7 @@ public class ConversationFragment extends SherlockListFragment
                                                   (!this.recipients.isSingleRecipient()) || this.recipients.isGroupRecipient(),
                                                   DirectoryHelper.isPushDestination(getActivity(), this.recipients.getPrimaryRecipient())));
       getListView().setRecyclerListener((ConversationAdapter)getListAdapter());
+      getListView().setOnScrollListener(new OlderMessagesScrollListener());
       getLoaderManager().initLoader(0, null, this);
     }
   }
@@ -212,7 +217,23 @@ public class ConversationFragment extends SherlockListFragment
 
   @Override
   public void onLoadFinished(Loader<Cursor> arg0, Cursor cursor) {
-    ((CursorAdapter)getListAdapter()).changeCursor(cursor);
+    CursorAdapter adapter = (CursorAdapter)getListAdapter();
+
+    if (!loadingOlder) {
+      adapter.changeCursor(cursor);
+      return;
+    }
+
+    // Keep the same message on screen while older ones are added above it.
+    ListView list     = getListView();
+    View     top      = list.getChildAt(0);
+    int      offset   = top == null ? 0 : top.getTop();
+    int      first    = list.getFirstVisiblePosition();
+    int      oldCount = adapter.getCount();
+
+    loadingOlder = false;
+    adapter.changeCursor(cursor);
+    list.setSelectionFromTop(first + adapter.getCount() - oldCount, offset);
   }
 
   @Override
@@ -220,6 +241,22 @@ public class ConversationFragment extends SherlockListFragment
     ((CursorAdapter)getListAdapter()).changeCursor(null);
   }
 
+  private class OlderMessagesScrollListener implements AbsListView.OnScrollListener {
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+      if (firstVisibleItem != 0 || totalItemCount == 0 || loadingOlder) return;
+
+      Loader<Cursor> loader = getLoaderManager().getLoader(0);
+
+      if (loader != null && ((ConversationLoader)loader).loadOlder()) {
+        loadingOlder = true;
+      }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+  }
+
   private class FailedIconClickHandler extends Handler {
     @Override
     public void handleMessage(android.os.Message message) {
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import android.util.Log;
+
+import org.whispersystems.textsecure.crypto.MasterSecret;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Class for reading a part written in the chunked format off disk.  Only
+ * the chunk containing the current position is authenticated and decrypted,
+ * so seek() and skip() don't depend on how far into the part they land.
+ */
+public class ChunkedDecryptingPartInputStream extends InputStream {
+
+  private final RandomAccessFile file;
+  private final SecretKeySpec    encryptionKey;
+  private final Cipher           cipher;
+  private final Mac              mac;
+  private final byte[]           header;
+  private final byte[]           nonce;
+  private final byte[]           ciphertext;
+  private final byte[]           plaintext;
+  private final long             chunkCount;
+  private final long             plaintextLength;
+
+  private long position    = 0;
+  private long loadedChunk = -1;
+  private int  loadedLength;
+
+  public ChunkedDecryptingPartInputStream(File file, MasterSecret masterSecret)
+      throws FileNotFoundException
+  {
+    this.file = new RandomAccessFile(file, "r");
+
+    try {
+      this.encryptionKey   = masterSecret.getEncryptionKey();
+      this.cipher          = Cipher.getInstance("AES/CTR/NoPadding");
+      this.mac             = Mac.getInstance("HmacSHA1");
+      this.header          = new byte[ChunkedPartFormat.HEADER_LENGTH];
+      this.nonce           = new byte[ChunkedPartFormat.NONCE_LENGTH];
+      this.ciphertext      = new byte[ChunkedPartFormat.CHUNK_STRIDE];
+      this.plaintext       = new byte[ChunkedPartFormat.CHUNK_SIZE];
+      this.chunkCount      = ChunkedPartFormat.getChunkCount(file.length());
+      this.plaintextLength = ChunkedPartFormat.getPlaintextLength(file.length());
+
+      this.mac.init(masterSecret.getMacKey());
+      this.file.readFully(header);
+
+      if (!Arrays.equals(Arrays.copyOf(header, ChunkedPartFormat.MAGIC.length), ChunkedPartFormat.MAGIC)) {
+        throw new IOException("Not a chunked part!");
+      }
+
+      System.arraycopy(header, ChunkedPartFormat.MAGIC.length, nonce, 0, nonce.length);
+    } catch (IOException e) {
+      Log.w("ChunkedDecryptingPartInputStream", e);
+      closeQuietly();
+      throw new FileNotFoundException("Couldn't read chunked part header!");
+    } catch (InvalidKeyException e) {
+      Log.w("ChunkedDecryptingPartInputStream", e);
+      closeQuietly();
+      throw new FileNotFoundException("Invalid key!");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public long getPlaintextLength() {
+    return plaintextLength;
+  }
+
+  public void seek(long position) throws IOException {
+    if (position < 0 || position > plaintextLength) {
+      throw new IOException("Seek out of range: " + position);
+    }
+
+    this.position = position;
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    long skipped = Math.max(0, Math.min(count, plaintextLength - position));
+    position += skipped;
+
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int)Math.min(Integer.MAX_VALUE, plaintextLength - position);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (position >= plaintextLength) {
+      // Authenticate the final chunk even when it's empty, so truncation is detected.
+      loadChunk(chunkCount - 1);
+      return -1;
+    }
+
+    long chunkIndex  = position / ChunkedPartFormat.CHUNK_SIZE;
+    int  chunkOffset = (int)(position % ChunkedPartFormat.CHUNK_SIZE);
+
+    loadChunk(chunkIndex);
+
+    int read = Math.min(length, loadedLength - chunkOffset);
+
+    System.arraycopy(plaintext, chunkOffset, buffer, offset, read);
+    position += read;
+
+    return read;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private void loadChunk(long chunkIndex) throws IOException {
+    if (chunkIndex == loadedChunk) return;
+
+    boolean last   = chunkIndex == chunkCount - 1;
+    int     length = last ? (int)(plaintextLength - chunkIndex * ChunkedPartFormat.CHUNK_SIZE)
+                          : ChunkedPartFormat.CHUNK_SIZE;
+
+    file.seek(ChunkedPartFormat.getChunkOffset(chunkIndex));
+    file.readFully(ciphertext, 0, length + ChunkedPartFormat.MAC_LENGTH);
+
+    byte[] ourMac   = ChunkedPartFormat.getChunkMac(mac, header, chunkIndex, last, ciphertext, 0, length);
+    byte[] theirMac = Arrays.copyOfRange(ciphertext, length, length + ChunkedPartFormat.MAC_LENGTH);
+
+    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+      throw new IOException("MAC doesn't match! Potential tampering?");
+    }
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, encryptionKey, ChunkedPartFormat.getIv(nonce, chunkIndex));
+      cipher.doFinal(ciphertext, 0, length, plaintext, 0);
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    } catch (IllegalBlockSizeException e) {
+      throw new AssertionError(e);
+    } catch (BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+
+    loadedChunk  = chunkIndex;
+    loadedLength = length;
+  }
+
+  private void closeQuietly() {
+    try {
+      file.close();
+    } catch (IOException e) {
+      Log.w("ChunkedDecryptingPartInputStream", e);
+    }
+  }
+}
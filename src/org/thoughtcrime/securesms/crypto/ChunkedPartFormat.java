@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Layout of the chunked, randomly-accessible encrypted part format.
+ *
+ * A file is a header (magic || nonce) followed by chunks of up to CHUNK_SIZE
+ * bytes of AES-CTR ciphertext, each followed by an HMAC-SHA1 over the header,
+ * the chunk index, a last-chunk flag, and the ciphertext.  The counter for a
+ * chunk is derived from its index, so any chunk can be located, authenticated
+ * and decrypted on its own.  The last chunk is always shorter than CHUNK_SIZE,
+ * and may be empty.
+ *
+ * Parts written before this format existed are a single AES-CBC stream and
+ * are read by DecryptingPartInputStream.
+ */
+public class ChunkedPartFormat {
+
+  static final byte[] MAGIC         = {'T', 'S', 'P', 'A', 'R', 'T', 0x00, 0x02};
+  static final int    NONCE_LENGTH  = 12;
+  static final int    HEADER_LENGTH = MAGIC.length + NONCE_LENGTH;
+  static final int    CHUNK_SIZE    = 32 * 1024;
+  static final int    MAC_LENGTH    = 20;
+  static final int    CHUNK_STRIDE  = CHUNK_SIZE + MAC_LENGTH;
+
+  private static final int BLOCK_SIZE = 16;
+
+  public static boolean isChunked(File file) throws IOException {
+    if (file.length() < HEADER_LENGTH) return false;
+
+    FileInputStream in    = new FileInputStream(file);
+    byte[]          magic = new byte[MAGIC.length];
+
+    try {
+      int offset = 0;
+
+      while (offset < magic.length) {
+        int read = in.read(magic, offset, magic.length - offset);
+        if (read == -1) return false;
+        offset += read;
+      }
+
+      return Arrays.equals(magic, MAGIC);
+    } finally {
+      in.close();
+    }
+  }
+
+  static long getChunkCount(long fileLength) throws IOException {
+    long bodyLength = fileLength - HEADER_LENGTH;
+
+    if (bodyLength < MAC_LENGTH || bodyLength % CHUNK_STRIDE < MAC_LENGTH) {
+      throw new IOException("Invalid chunked part length: " + fileLength);
+    }
+
+    return bodyLength / CHUNK_STRIDE + 1;
+  }
+
+  static long getPlaintextLength(long fileLength) throws IOException {
+    long chunkCount = getChunkCount(fileLength);
+    long lastLength = (fileLength - HEADER_LENGTH) % CHUNK_STRIDE - MAC_LENGTH;
+
+    return (chunkCount - 1) * CHUNK_SIZE + lastLength;
+  }
+
+  static long getChunkOffset(long chunkIndex) {
+    return HEADER_LENGTH + chunkIndex * CHUNK_STRIDE;
+  }
+
+  static IvParameterSpec getIv(byte[] nonce, long chunkIndex) {
+    byte[] iv      = new byte[BLOCK_SIZE];
+    long   counter = chunkIndex * (CHUNK_SIZE / BLOCK_SIZE);
+
+    System.arraycopy(nonce, 0, iv, 0, NONCE_LENGTH);
+
+    for (int i=BLOCK_SIZE-1;i>=NONCE_LENGTH;i--) {
+      iv[i]     = (byte)counter;
+      counter >>>= 8;
+    }
+
+    return new IvParameterSpec(iv);
+  }
+
+  static byte[] getChunkMac(Mac mac, byte[] header, long chunkIndex, boolean last,
+                            byte[] ciphertext, int offset, int length)
+  {
+    byte[] index = new byte[8];
+
+    for (int i=7;i>=0;i--) {
+      index[i]     = (byte)chunkIndex;
+      chunkIndex >>>= 8;
+    }
+
+    mac.update(header);
+    mac.update(index);
+    mac.update((byte)(last ? 1 : 0));
+    mac.update(ciphertext, offset, length);
+
+    return mac.doFinal();
+  }
+}
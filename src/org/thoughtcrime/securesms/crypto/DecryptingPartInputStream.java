@@ -84,6 +84,21 @@ public class DecryptingPartInputStream extends FileInputStream {
     }
   }
 	
+  @Override
+  public long skip(long count) throws IOException {
+    // FileInputStream would skip ciphertext underneath the cipher, so decrypt and discard.
+    byte[] buffer  = new byte[4096];
+    long   skipped = 0;
+
+    while (skipped < count) {
+      int read = read(buffer, 0, (int)Math.min(buffer.length, count - skipped));
+      if (read == -1) break;
+      skipped += read;
+    }
+
+    return skipped;
+  }
+
   @Override
   public int read(byte[] buffer) throws IOException {
     return read(buffer, 0, buffer.length);
@@ -23,6 +23,7 @@ import android.database.Cursor;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.protocol.KeyExchangeMessage;
+import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.EncryptingSmsDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
@@ -39,10 +40,12 @@ import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.service.PushReceiver;
 import org.thoughtcrime.securesms.service.SendReceiveService;
 import org.thoughtcrime.securesms.sms.SmsTransportDetails;
+import org.thoughtcrime.securesms.util.KeyedSerialExecutor;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.textsecure.crypto.InvalidKeyException;
 import org.whispersystems.textsecure.crypto.InvalidMessageException;
 import org.whispersystems.textsecure.crypto.InvalidVersionException;
+import org.whispersystems.textsecure.crypto.MasterCipher;
 import org.whispersystems.textsecure.crypto.MasterSecret;
 import org.whispersystems.textsecure.crypto.SessionCipher;
 import org.whispersystems.textsecure.push.IncomingPushMessage;
@@ -53,11 +56,10 @@ import org.whispersystems.textsecure.util.Hex;
 import org.whispersystems.textsecure.util.Util;
 
 import java.io.IOException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.EncodedStringValue;
 import ws.com.google.android.mms.pdu.MultimediaMessagePdu;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.RetrieveConf;
@@ -65,18 +67,25 @@ import ws.com.google.android.mms.pdu.RetrieveConf;
 /**
  * A work queue for processing a number of encryption operations.
  *
+ * Work is spread across a pool of threads, but items from the same sender
+ * device are always processed one at a time, in the order they arrived.
+ *
  * @author Moxie Marlinspike
  */
 
 public class DecryptingQueue {
 
-  private static final Executor executor = Executors.newSingleThreadExecutor();
+  private static final KeyedSerialExecutor executor =
+      new KeyedSerialExecutor("DecryptingQueue", Math.max(2, Runtime.getRuntime().availableProcessors()));
 
   public static void scheduleDecryption(Context context, MasterSecret masterSecret,
                                         long messageId, long threadId, MultimediaMessagePdu mms)
   {
-    MmsDecryptionItem runnable = new MmsDecryptionItem(context, masterSecret, messageId, threadId, mms);
-    executor.execute(runnable);
+    MmsDecryptionItem  runnable = new MmsDecryptionItem(context, masterSecret, messageId, threadId, mms);
+    EncodedStringValue from     = mms.getFrom();
+    String             address  = from == null ? "" : from.getString();
+
+    executor.execute(getQueueKey(context, address, RecipientDevice.DEFAULT_DEVICE_ID), runnable);
   }
 
   public static void scheduleDecryption(Context context, MasterSecret masterSecret,
@@ -87,7 +96,7 @@ public class DecryptingQueue {
     DecryptionWorkItem runnable = new DecryptionWorkItem(context, masterSecret, messageId, threadId,
                                                          originator, deviceId, body,
                                                          isSecureMessage, isKeyExchange, isEndSession);
-    executor.execute(runnable);
+    executor.execute(getQueueKey(context, originator, deviceId), runnable);
   }
 
   public static void scheduleDecryption(Context context, MasterSecret masterSecret,
@@ -95,7 +104,16 @@ public class DecryptingQueue {
   {
     PushDecryptionWorkItem runnable = new PushDecryptionWorkItem(context, masterSecret,
                                                                  messageId, message);
-    executor.execute(runnable);
+    executor.execute(getQueueKey(context, message.getSource(), message.getSourceDevice()), runnable);
+  }
+
+  public static int getQueueDepth() {
+    return executor.getQueueDepth();
+  }
+
+  private static RecipientDevice getQueueKey(Context context, String address, int deviceId) {
+    long recipientId = CanonicalAddressDatabase.getInstance(context).getCanonicalAddress(address);
+    return new RecipientDevice(recipientId, deviceId);
   }
 
   public static void schedulePendingDecrypts(Context context, MasterSecret masterSecret) {
@@ -119,7 +137,9 @@ public class DecryptingQueue {
       }
 
       while ((message = pushReader.getNext()) != null) {
-        if (message.isPreKeyBundle()) {
+        if (pushReader.isCurrentDecrypted()) {
+          scheduleDecrypted(context, masterSecret, pushReader.getCurrentId(), message);
+        } else if (message.isPreKeyBundle()) {
           Intent intent = new Intent(context, SendReceiveService.class);
           intent.setAction(SendReceiveService.RECEIVE_PUSH_ACTION);
           intent.putExtra("message", message);
@@ -140,6 +160,31 @@ public class DecryptingQueue {
     }
   }
 
+  /**
+   * Hands a message that was decrypted before a restart straight back to the
+   * receiver, from the copy of its plaintext kept in the push database.
+   */
+  private static void scheduleDecrypted(Context context, MasterSecret masterSecret,
+                                        long messageId, IncomingPushMessage message)
+  {
+    Intent intent = new Intent(context, SendReceiveService.class);
+    intent.setAction(SendReceiveService.DECRYPTED_PUSH_ACTION);
+    intent.putExtra("message_id", messageId);
+
+    try {
+      byte[] plaintextBody = new MasterCipher(masterSecret).decryptBytes(message.getBody());
+
+      intent.putExtra("message", message.withBody(plaintextBody));
+      intent.putExtra("result", PushReceiver.RESULT_OK);
+    } catch (InvalidMessageException e) {
+      Log.w("DecryptingQueue", e);
+      intent.putExtra("message", message);
+      intent.putExtra("result", PushReceiver.RESULT_DECRYPT_FAILED);
+    }
+
+    context.startService(intent);
+  }
+
   public static void scheduleRogueMessages(Context context, MasterSecret masterSecret, Recipient recipient) {
     SmsDatabase.Reader reader = null;
     SmsMessageRecord record;
@@ -205,6 +250,8 @@ public class DecryptingQueue {
         SessionCipher sessionCipher = SessionCipher.createFor(context, masterSecret, recipientDevice);
         byte[]        plaintextBody = sessionCipher.decrypt(message.getBody());
 
+        DatabaseFactory.getPushDatabase(context).markDecrypted(masterSecret, messageId, plaintextBody);
+
         message = message.withBody(plaintextBody);
         sendResult(PushReceiver.RESULT_OK);
       } catch (InvalidMessageException e) {
@@ -20,8 +20,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -35,27 +37,47 @@ import android.util.Log;
 import org.whispersystems.textsecure.crypto.MasterSecret;
 
 /**
- * A class for streaming an encrypted MMS "part" to disk.
+ * A class for streaming an encrypted MMS "part" to disk, in the chunked
+ * format described by ChunkedPartFormat.
  * 
  * @author Moxie Marlinspike
  */
 
 public class EncryptingPartOutputStream extends FileOutputStream {
 
-  private Cipher cipher;
-  private Mac mac;
+  private final SecretKeySpec encryptionKey;
+  private final Cipher        cipher;
+  private final Mac           mac;
+  private final byte[]        header;
+  private final byte[]        nonce;
+  private final byte[]        chunk;
+
+  private int     chunkLength;
+  private long    chunkIndex;
   private boolean closed;
 	
   public EncryptingPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
 
     try {
-      mac    = initializeMac(masterSecret.getMacKey());
-      cipher = initializeCipher(mac, masterSecret.getEncryptionKey());
-      closed = false;
+      encryptionKey = masterSecret.getEncryptionKey();
+      mac           = initializeMac(masterSecret.getMacKey());
+      cipher        = Cipher.getInstance("AES/CTR/NoPadding");
+      nonce         = new byte[ChunkedPartFormat.NONCE_LENGTH];
+      header        = new byte[ChunkedPartFormat.HEADER_LENGTH];
+      chunk         = new byte[ChunkedPartFormat.CHUNK_SIZE];
+      chunkLength   = 0;
+      chunkIndex    = 0;
+      closed        = false;
+
+      SecureRandom.getInstance("SHA1PRNG").nextBytes(nonce);
+      System.arraycopy(ChunkedPartFormat.MAGIC, 0, header, 0, ChunkedPartFormat.MAGIC.length);
+      System.arraycopy(nonce, 0, header, ChunkedPartFormat.MAGIC.length, nonce.length);
+
+      super.write(header, 0, header.length);
     } catch (IOException ioe) {
       Log.w("EncryptingPartOutputStream", ioe);
-      throw new FileNotFoundException("Couldn't write IV");
+      throw new FileNotFoundException("Couldn't write header");
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (NoSuchAlgorithmException e) {
@@ -64,6 +86,11 @@ public class EncryptingPartOutputStream extends FileOutputStream {
       throw new AssertionError(e);
     }
   }
+
+  @Override
+  public void write(int b) throws IOException {
+    this.write(new byte[] {(byte)b}, 0, 1);
+  }
 	
   @Override
   public void write(byte[] buffer) throws IOException {
@@ -72,32 +99,49 @@ public class EncryptingPartOutputStream extends FileOutputStream {
 	
   @Override
   public void write(byte[] buffer, int offset, int length) throws IOException {
-    byte[] encryptedBuffer = cipher.update(buffer, offset, length);
-		
-    if (encryptedBuffer != null) {
-      mac.update(encryptedBuffer);
-      super.write(encryptedBuffer, 0, encryptedBuffer.length);
+    while (length > 0) {
+      int copied = Math.min(length, chunk.length - chunkLength);
+
+      System.arraycopy(buffer, offset, chunk, chunkLength, copied);
+      chunkLength += copied;
+      offset      += copied;
+      length      -= copied;
+
+      if (chunkLength == chunk.length) {
+        writeChunk(false);
+      }
     }
   }
 	
   @Override
   public void close() throws IOException {
+    if (!closed) {
+      writeChunk(true);
+      closed = true;
+    }
+
+    super.close();
+  }
+
+  private void writeChunk(boolean last) throws IOException {
     try {
-      if (!closed) {
-        byte[] encryptedRemainder = cipher.doFinal();
-        mac.update(encryptedRemainder);
-				
-        byte[] macBytes = mac.doFinal();
-				
-        super.write(encryptedRemainder, 0, encryptedRemainder.length);
-        super.write(macBytes, 0, macBytes.length);		
-
-        closed = true;
-      }
-			
-      super.close();
-    } catch (BadPaddingException bpe) {
-      throw new AssertionError(bpe);
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, ChunkedPartFormat.getIv(nonce, chunkIndex));
+
+      byte[] ciphertext = cipher.doFinal(chunk, 0, chunkLength);
+      byte[] chunkMac   = ChunkedPartFormat.getChunkMac(mac, header, chunkIndex, last,
+                                                        ciphertext, 0, ciphertext.length);
+
+      super.write(ciphertext, 0, ciphertext.length);
+      super.write(chunkMac, 0, chunkMac.length);
+
+      chunkIndex++;
+      chunkLength = 0;
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    } catch (BadPaddingException e) {
+      throw new AssertionError(e);
     } catch (IllegalBlockSizeException e) {
       throw new AssertionError(e);
     }
@@ -109,16 +153,5 @@ public class EncryptingPartOutputStream extends FileOutputStream {
 
     return hmac;
   }
-	
-  private Cipher initializeCipher(Mac mac, SecretKeySpec key) throws IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    cipher.init(Cipher.ENCRYPT_MODE, key);
-
-    byte[] ivBytes = cipher.getIV();		
-    mac.update(ivBytes);
-    super.write(ivBytes, 0, ivBytes.length);
-		
-    return cipher;
-  }
 
 }
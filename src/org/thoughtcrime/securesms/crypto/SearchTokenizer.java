@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import org.whispersystems.textsecure.crypto.MasterSecret;
+import org.whispersystems.textsecure.util.Hex;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns message plaintext into blind search tokens.  Each word is keyed-HMAC'd
+ * with a key derived from the master secret, so the search index on disk
+ * reveals which messages share a word, but not what the word is.
+ */
+public class SearchTokenizer {
+
+  private static final String KEY_INFO        = "TextSecure search index";
+  private static final int    MIN_TERM_LENGTH = 2;
+  private static final int    MAX_TERM_LENGTH = 32;
+  private static final int    TOKEN_LENGTH    = 16;
+
+  private final Mac mac;
+
+  public SearchTokenizer(MasterSecret masterSecret) {
+    try {
+      Mac keyMac = Mac.getInstance("HmacSHA256");
+      keyMac.init(masterSecret.getMacKey());
+
+      byte[] searchKey = keyMac.doFinal(KEY_INFO.getBytes("UTF-8"));
+
+      this.mac = Mac.getInstance("HmacSHA256");
+      this.mac.init(new SecretKeySpec(searchKey, "HmacSHA256"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return the distinct blind tokens for the words in the given text.
+   */
+  public Set<String> tokenize(String text) {
+    Set<String> tokens = new LinkedHashSet<String>();
+
+    if (text == null) return tokens;
+
+    for (String term : getTerms(text)) {
+      tokens.add(getToken(term));
+    }
+
+    return tokens;
+  }
+
+  private Set<String> getTerms(String text) {
+    Set<String>   terms = new LinkedHashSet<String>();
+    String        lower = text.toLowerCase(Locale.US);
+    StringBuilder term  = new StringBuilder();
+
+    for (int i=0;i<=lower.length();i++) {
+      char c = i < lower.length() ? lower.charAt(i) : ' ';
+
+      if (Character.isLetterOrDigit(c)) {
+        if (term.length() < MAX_TERM_LENGTH) term.append(c);
+      } else if (term.length() > 0) {
+        if (term.length() >= MIN_TERM_LENGTH) terms.add(term.toString());
+        term.setLength(0);
+      }
+    }
+
+    return terms;
+  }
+
+  private String getToken(String term) {
+    try {
+      byte[] digest = mac.doFinal(term.getBytes("UTF-8"));
+      return Hex.toStringCondensed(Arrays.copyOf(digest, TOKEN_LENGTH));
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
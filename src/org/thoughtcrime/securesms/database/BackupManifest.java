@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The list of files in an incremental backup.  Each file is recorded as the
+ * content hashes of its fixed-size chunks, which live once each in the
+ * backup's chunk store no matter how many files or backups refer to them.
+ */
+class BackupManifest {
+
+  private static final String HEADER = "TextSecureBackupManifest 1";
+
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+  public static BackupManifest read(File file) throws IOException {
+    BackupManifest manifest = new BackupManifest();
+    BufferedReader reader   = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+    try {
+      if (!HEADER.equals(reader.readLine())) {
+        throw new IOException("Not a backup manifest!");
+      }
+
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+
+        if (fields.length != 4) {
+          throw new IOException("Bad manifest line: " + line);
+        }
+
+        try {
+          List<String> chunks = fields[3].length() == 0 ? Arrays.<String>asList()
+                                                        : Arrays.asList(fields[3].split(","));
+
+          manifest.put(new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), chunks));
+        } catch (NumberFormatException e) {
+          throw new IOException("Bad manifest line: " + line);
+        }
+      }
+
+      return manifest;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Writes the manifest next to its final location and then renames it into
+   * place, so a backup interrupted partway leaves the previous one intact.
+   */
+  public void write(File file) throws IOException {
+    File           temporary = new File(file.getAbsolutePath() + ".tmp");
+    BufferedWriter writer    = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+
+    try {
+      writer.write(HEADER);
+      writer.newLine();
+
+      for (Entry entry : entries.values()) {
+        StringBuilder chunks = new StringBuilder();
+
+        for (String chunk : entry.getChunks()) {
+          if (chunks.length() > 0) chunks.append(',');
+          chunks.append(chunk);
+        }
+
+        writer.write(entry.getPath() + "\t" + entry.getLength() + "\t" + entry.getLastModified() + "\t" + chunks);
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
+
+    if (!temporary.renameTo(file)) {
+      throw new IOException("Couldn't move manifest into place!");
+    }
+  }
+
+  public Entry get(String path) {
+    return entries.get(path);
+  }
+
+  public void put(Entry entry) {
+    entries.put(entry.getPath(), entry);
+  }
+
+  public Collection<Entry> getEntries() {
+    return entries.values();
+  }
+
+  public Set<String> getChunks() {
+    Set<String> chunks = new HashSet<String>();
+
+    for (Entry entry : entries.values()) {
+      chunks.addAll(entry.getChunks());
+    }
+
+    return chunks;
+  }
+
+  public static class Entry {
+    private final String       path;
+    private final long         length;
+    private final long         lastModified;
+    private final List<String> chunks;
+
+    public Entry(String path, long length, long lastModified, List<String> chunks) {
+      this.path         = path;
+      this.length       = length;
+      this.lastModified = lastModified;
+      this.chunks       = chunks;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public List<String> getChunks() {
+      return chunks;
+    }
+
+    public boolean isUnchanged(File file) {
+      return file.length() == length && file.lastModified() == lastModified;
+    }
+  }
+}
@@ -21,6 +21,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 
+import java.util.Collection;
 import java.util.Set;
 
 public abstract class Database {
@@ -58,6 +59,22 @@ public abstract class Database {
     cursor.setNotificationUri(context.getContentResolver(), Uri.parse(CONVERSATION_LIST_URI));
   }
 
+  /**
+   * @return a selection matching rows whose column is one of the given ids.
+   */
+  protected static String getIdSelection(String column, Collection<Long> ids) {
+    StringBuilder selection = new StringBuilder(column + " IN (");
+    boolean       first     = true;
+
+    for (long id : ids) {
+      if (!first) selection.append(", ");
+      selection.append(id);
+      first = false;
+    }
+
+    return selection.append(")").toString();
+  }
+
   public void reset(SQLiteOpenHelper databaseHelper) {
     this.databaseHelper = databaseHelper;
   }
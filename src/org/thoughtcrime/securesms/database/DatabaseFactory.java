@@ -54,7 +54,10 @@ public class DatabaseFactory {
   private static final int INTRODUCED_PUSH_DATABASE_VERSION = 10;
   private static final int INTRODUCED_GROUP_DATABASE_VERSION = 11;
   private static final int INTRODUCED_PUSH_FIX_VERSION       = 12;
-  private static final int DATABASE_VERSION                  = 12;
+  private static final int INTRODUCED_MESSAGE_INDEX_VERSION  = 14;
+  private static final int INTRODUCED_SEARCH_INDEX_VERSION   = 15;
+  private static final int INTRODUCED_PUSH_DECRYPTED_VERSION = 16;
+  private static final int DATABASE_VERSION                  = 16;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -76,6 +79,7 @@ public class DatabaseFactory {
   private final DraftDatabase draftDatabase;
   private final PushDatabase pushDatabase;
   private final GroupDatabase groupDatabase;
+  private final SearchDatabase searchDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -145,6 +149,10 @@ public class DatabaseFactory {
     return getInstance(context).groupDatabase;
   }
 
+  public static SearchDatabase getSearchDatabase(Context context) {
+    return getInstance(context).searchDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper   = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms              = new SmsDatabase(context, databaseHelper);
@@ -159,6 +167,7 @@ public class DatabaseFactory {
     this.draftDatabase    = new DraftDatabase(context, databaseHelper);
     this.pushDatabase     = new PushDatabase(context, databaseHelper);
     this.groupDatabase    = new GroupDatabase(context, databaseHelper);
+    this.searchDatabase   = new SearchDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -176,6 +185,7 @@ public class DatabaseFactory {
     this.draftDatabase.reset(databaseHelper);
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
+    this.searchDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -443,6 +453,8 @@ public class DatabaseFactory {
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
+      db.execSQL(MmsSmsDatabase.CREATE_INDEX_TABLE);
+      db.execSQL(SearchDatabase.CREATE_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -451,6 +463,10 @@ public class DatabaseFactory {
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
       executeStatements(db, GroupDatabase.CREATE_INDEXS);
+      executeStatements(db, MmsSmsDatabase.CREATE_INDEXS);
+      executeStatements(db, MmsSmsDatabase.CREATE_TRIGGERS);
+      executeStatements(db, SearchDatabase.CREATE_INDEXS);
+      executeStatements(db, SearchDatabase.CREATE_TRIGGERS);
     }
 
     @Override
@@ -659,6 +675,44 @@ public class DatabaseFactory {
         db.execSQL("DROP TABLE push_backup;");
       }
 
+      if (oldVersion < INTRODUCED_MESSAGE_INDEX_VERSION) {
+        db.execSQL("DROP INDEX IF EXISTS sms_thread_date_index;");
+        db.execSQL("DROP INDEX IF EXISTS mms_thread_date_index;");
+
+        db.execSQL("CREATE TABLE message_index (_id INTEGER PRIMARY KEY, thread_id INTEGER, date INTEGER, transport TEXT, message_id INTEGER, read INTEGER DEFAULT 0);");
+        db.execSQL("INSERT INTO message_index (thread_id, date, transport, message_id, read) SELECT thread_id, date, 'sms', _id, read FROM sms;");
+        db.execSQL("INSERT INTO message_index (thread_id, date, transport, message_id, read) SELECT thread_id, date_received * 1000, 'mms', _id, read FROM mms;");
+
+        executeStatements(db, new String[] {
+            "CREATE UNIQUE INDEX IF NOT EXISTS message_index_message_index ON message_index (transport, message_id);",
+            "CREATE INDEX IF NOT EXISTS message_index_thread_date_index ON message_index (thread_id, date);",
+            "CREATE INDEX IF NOT EXISTS message_index_read_date_index ON message_index (read, date);"
+        });
+
+        executeStatements(db, new String[] {
+            "CREATE TRIGGER IF NOT EXISTS sms_index_insert AFTER INSERT ON sms BEGIN INSERT INTO message_index (thread_id, date, transport, message_id, read) VALUES (new.thread_id, new.date, 'sms', new._id, new.read); END;",
+            "CREATE TRIGGER IF NOT EXISTS sms_index_update AFTER UPDATE OF thread_id, date, read ON sms BEGIN UPDATE message_index SET thread_id = new.thread_id, date = new.date, read = new.read WHERE transport = 'sms' AND message_id = old._id; END;",
+            "CREATE TRIGGER IF NOT EXISTS sms_index_delete AFTER DELETE ON sms BEGIN DELETE FROM message_index WHERE transport = 'sms' AND message_id = old._id; END;",
+            "CREATE TRIGGER IF NOT EXISTS mms_index_insert AFTER INSERT ON mms BEGIN INSERT INTO message_index (thread_id, date, transport, message_id, read) VALUES (new.thread_id, new.date_received * 1000, 'mms', new._id, new.read); END;",
+            "CREATE TRIGGER IF NOT EXISTS mms_index_update AFTER UPDATE OF thread_id, date_received, read ON mms BEGIN UPDATE message_index SET thread_id = new.thread_id, date = new.date_received * 1000, read = new.read WHERE transport = 'mms' AND message_id = old._id; END;",
+            "CREATE TRIGGER IF NOT EXISTS mms_index_delete AFTER DELETE ON mms BEGIN DELETE FROM message_index WHERE transport = 'mms' AND message_id = old._id; END;"
+        });
+      }
+
+      if (oldVersion < INTRODUCED_SEARCH_INDEX_VERSION) {
+        db.execSQL("CREATE TABLE search_tokens (token TEXT, message_id INTEGER);");
+
+        executeStatements(db, new String[] {
+            "CREATE UNIQUE INDEX IF NOT EXISTS search_token_index ON search_tokens (token, message_id);",
+            "CREATE INDEX IF NOT EXISTS search_message_id_index ON search_tokens (message_id);",
+            "CREATE TRIGGER IF NOT EXISTS sms_search_delete AFTER DELETE ON sms BEGIN DELETE FROM search_tokens WHERE message_id = old._id; END;"
+        });
+      }
+
+      if (oldVersion < INTRODUCED_PUSH_DECRYPTED_VERSION) {
+        db.execSQL("ALTER TABLE push ADD COLUMN decrypted INTEGER DEFAULT 0;");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -18,24 +18,54 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.whispersystems.textsecure.storage.SessionRecordV2;
+import org.whispersystems.textsecure.util.Hex;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 
+/**
+ * Backs up the application's private data directory to external storage.
+ * Files are split into fixed-size chunks which are stored once each under
+ * their SHA-256, and a manifest lists the chunks that make up every file.
+ * A backup only writes the chunks that aren't already stored, so repeating
+ * one after a small change writes little more than the change itself.
+ * Backups written by older versions, as a plain copy of the directory, can
+ * still be restored.
+ */
 public class EncryptedBackupExporter {
 
+  private static final String MANIFEST_NAME = "manifest";
+  private static final String CHUNKS_NAME   = "chunks";
+  private static final int    CHUNK_SIZE    = 1024 * 1024;
+
   public static void exportToSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport();
-    exportDirectory(context, "");
+    SessionRecordV2.flushPendingWrites();
+    exportIncremental(context);
   }
 
   public static void importFromSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForImport();
-    importDirectory(context, "");
+    SessionRecordV2.clearCache();
+
+    File manifest = new File(getExportDirectoryPath(), MANIFEST_NAME);
+
+    if (manifest.exists()) importIncremental(context, BackupManifest.read(manifest));
+    else                   importDirectory(context, "");
   }
 
   private static String getExportDirectoryPath() {
@@ -75,30 +105,246 @@ public class EncryptedBackupExporter {
     }
   }
 
-  private static void exportDirectory(Context context, String directoryName) throws IOException {
-    File directory       = new File(context.getFilesDir().getParent() + File.separatorChar + directoryName);
-    File exportDirectory = new File(getExportDirectoryPath() + File.separatorChar + directoryName);
+  private static void exportIncremental(Context context) throws IOException {
+    File           exportDirectory = new File(getExportDirectoryPath());
+    File           chunkDirectory  = new File(exportDirectory, CHUNKS_NAME);
+    File           manifestFile    = new File(exportDirectory, MANIFEST_NAME);
+    BackupManifest previous        = readPreviousManifest(manifestFile);
+    BackupManifest current         = new BackupManifest();
+    BackupStats    stats           = new BackupStats();
+    long           startTime       = SystemClock.elapsedRealtime();
 
-    if (directory.exists()) {
-      exportDirectory.mkdirs();
+    chunkDirectory.mkdirs();
 
-      File[] contents = directory.listFiles();
+    exportDirectory(new File(context.getFilesDir().getParent()), "", chunkDirectory, previous, current, stats);
+    current.write(manifestFile);
 
-      for (int i=0;i<contents.length;i++) {
-        File localFile = contents[i];
+    removeUnreferencedChunks(chunkDirectory, current.getChunks());
+    removeLegacyExport(exportDirectory);
 
-        if (localFile.isFile()) {
-          File exportedFile = new File(exportDirectory.getAbsolutePath() + File.separator + localFile.getName());
-          migrateFile(localFile, exportedFile);
+    Log.w("EncryptedBackupExporter", "Backed up " + stats.filesRead + " changed and " + stats.filesSkipped +
+                                     " unchanged files in " + (SystemClock.elapsedRealtime() - startTime) +
+                                     "ms, wrote " + stats.bytesWritten + " bytes, reused " +
+                                     stats.bytesReused + " bytes.");
+  }
+
+  private static BackupManifest readPreviousManifest(File manifestFile) {
+    if (!manifestFile.exists()) return new BackupManifest();
+
+    try {
+      return BackupManifest.read(manifestFile);
+    } catch (IOException e) {
+      Log.w("EncryptedBackupExporter", e);
+      return new BackupManifest();
+    }
+  }
+
+  private static void exportDirectory(File directory, String directoryName, File chunkDirectory,
+                                      BackupManifest previous, BackupManifest current,
+                                      BackupStats stats)
+      throws IOException
+  {
+    if (!directory.exists()) {
+      Log.w("EncryptedBackupExporter", "Could not find directory: " + directory.getAbsolutePath());
+      return;
+    }
+
+    File[] contents = directory.listFiles();
+
+    if (contents == null) return;
+
+    for (File localFile : contents) {
+      String path = directoryName.length() == 0 ? localFile.getName()
+                                                : directoryName + File.separator + localFile.getName();
+
+      if (localFile.isFile()) {
+        BackupManifest.Entry entry = previous.get(path);
+
+        if (entry != null && entry.isUnchanged(localFile) && hasChunks(chunkDirectory, entry)) {
+          current.put(entry);
+          stats.filesSkipped++;
+          stats.bytesReused += entry.getLength();
         } else {
-          exportDirectory(context, directoryName + File.separator + localFile.getName());
+          current.put(exportFile(localFile, path, chunkDirectory, stats));
+          stats.filesRead++;
         }
+      } else {
+        exportDirectory(localFile, path, chunkDirectory, previous, current, stats);
       }
-    } else {
-      Log.w("EncryptedBackupExporter", "Could not find directory: " + directory.getAbsolutePath());
     }
   }
 
+  private static BackupManifest.Entry exportFile(File localFile, String path, File chunkDirectory,
+                                                 BackupStats stats)
+      throws IOException
+  {
+    long            lastModified = localFile.lastModified();
+    List<String>    chunks       = new LinkedList<String>();
+    byte[]          buffer       = new byte[CHUNK_SIZE];
+    long            length       = 0;
+    FileInputStream in           = new FileInputStream(localFile);
+
+    try {
+      int read;
+
+      while ((read = readChunk(in, buffer)) > 0) {
+        String hash      = getHash(buffer, read);
+        File   chunkFile = new File(chunkDirectory, hash);
+
+        if (chunkFile.exists()) {
+          stats.bytesReused += read;
+        } else {
+          writeChunk(chunkFile, buffer, read);
+          stats.bytesWritten += read;
+        }
+
+        chunks.add(hash);
+        length += read;
+      }
+    } finally {
+      in.close();
+    }
+
+    return new BackupManifest.Entry(path, length, lastModified, chunks);
+  }
+
+  private static boolean hasChunks(File chunkDirectory, BackupManifest.Entry entry) {
+    for (String chunk : entry.getChunks()) {
+      if (!new File(chunkDirectory, chunk).exists()) return false;
+    }
+
+    return true;
+  }
+
+  private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+    int offset = 0;
+    int read;
+
+    while (offset < buffer.length && (read = in.read(buffer, offset, buffer.length - offset)) != -1) {
+      offset += read;
+    }
+
+    return offset;
+  }
+
+  private static void writeChunk(File chunkFile, byte[] buffer, int length) throws IOException {
+    File             temporary = new File(chunkFile.getAbsolutePath() + ".tmp");
+    FileOutputStream out       = new FileOutputStream(temporary);
+
+    try {
+      out.write(buffer, 0, length);
+    } finally {
+      out.close();
+    }
+
+    if (!temporary.renameTo(chunkFile)) {
+      throw new IOException("Couldn't move chunk into place: " + chunkFile.getName());
+    }
+  }
+
+  private static String getHash(byte[] buffer, int length) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(buffer, 0, length);
+
+      return Hex.toStringCondensed(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void removeUnreferencedChunks(File chunkDirectory, Set<String> referenced) {
+    File[] chunks = chunkDirectory.listFiles();
+
+    if (chunks == null) return;
+
+    for (File chunk : chunks) {
+      if (!referenced.contains(chunk.getName()) && !chunk.delete()) {
+        Log.w("EncryptedBackupExporter", "Couldn't remove unreferenced chunk: " + chunk.getName());
+      }
+    }
+  }
+
+  /**
+   * Removes the plain directory copy left by a backup in the older format,
+   * now that the manifest supersedes it.
+   */
+  private static void removeLegacyExport(File exportDirectory) {
+    File[] contents = exportDirectory.listFiles();
+
+    if (contents == null) return;
+
+    for (File file : contents) {
+      if (!file.getName().equals(MANIFEST_NAME) && !file.getName().equals(CHUNKS_NAME)) {
+        delete(file);
+      }
+    }
+  }
+
+  private static void delete(File file) {
+    File[] contents = file.listFiles();
+
+    if (contents != null) {
+      for (File child : contents) {
+        delete(child);
+      }
+    }
+
+    if (!file.delete()) {
+      Log.w("EncryptedBackupExporter", "Couldn't remove: " + file.getAbsolutePath());
+    }
+  }
+
+  private static void importIncremental(Context context, BackupManifest manifest) throws IOException {
+    File applicationDirectory = new File(context.getFilesDir().getParent());
+    File chunkDirectory       = new File(getExportDirectoryPath(), CHUNKS_NAME);
+
+    for (BackupManifest.Entry entry : manifest.getEntries()) {
+      File localFile = new File(applicationDirectory, entry.getPath());
+      File temporary = new File(localFile.getAbsolutePath() + ".tmp");
+
+      localFile.getParentFile().mkdirs();
+
+      FileOutputStream out = new FileOutputStream(temporary);
+
+      try {
+        for (String chunk : entry.getChunks()) {
+          copyChunk(new File(chunkDirectory, chunk), out);
+        }
+      } finally {
+        out.close();
+      }
+
+      if (temporary.length() != entry.getLength()) {
+        temporary.delete();
+        throw new IOException("Restored length doesn't match for " + entry.getPath());
+      }
+
+      if (!temporary.renameTo(localFile)) {
+        throw new IOException("Couldn't restore " + entry.getPath());
+      }
+    }
+  }
+
+  private static void copyChunk(File chunkFile, OutputStream out) throws IOException {
+    byte[]          buffer = new byte[(int)chunkFile.length()];
+    FileInputStream in     = new FileInputStream(chunkFile);
+
+    try {
+      if (readChunk(in, buffer) != buffer.length) {
+        throw new IOException("Short read on chunk: " + chunkFile.getName());
+      }
+    } finally {
+      in.close();
+    }
+
+    if (!getHash(buffer, buffer.length).equals(chunkFile.getName())) {
+      throw new IOException("Backup chunk is corrupt: " + chunkFile.getName());
+    }
+
+    out.write(buffer);
+  }
+
   private static void importDirectory(Context context, String directoryName) throws IOException {
     File directory       = new File(getExportDirectoryPath() + File.separator + directoryName);
     File importDirectory = new File(context.getFilesDir().getParent() + File.separator + directoryName);
@@ -118,4 +364,11 @@ public class EncryptedBackupExporter {
       }
     }
   }
+
+  private static class BackupStats {
+    private int  filesRead;
+    private int  filesSkipped;
+    private long bytesWritten;
+    private long bytesReused;
+  }
 }
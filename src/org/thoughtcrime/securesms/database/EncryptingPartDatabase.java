@@ -20,6 +20,8 @@ import android.content.Context;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.crypto.ChunkedDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ChunkedPartFormat;
 import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
 import org.whispersystems.textsecure.crypto.MasterSecret;
@@ -27,9 +29,10 @@ import org.whispersystems.textsecure.crypto.MasterSecret;
 import ws.com.google.android.mms.pdu.PduPart;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 public class EncryptingPartDatabase extends PartDatabase {
 
@@ -41,11 +44,20 @@ public class EncryptingPartDatabase extends PartDatabase {
   }
 
   @Override
-  protected FileInputStream getPartInputStream(File path, PduPart part) throws FileNotFoundException {
+  protected InputStream getPartInputStream(File path, PduPart part) throws FileNotFoundException {
     Log.w("EncryptingPartDatabase", "Getting part at: " + path.getAbsolutePath());
     if (!part.getEncrypted())
       return super.getPartInputStream(path, part);
 
+    try {
+      if (ChunkedPartFormat.isChunked(path)) {
+        return new ChunkedDecryptingPartInputStream(path, masterSecret);
+      }
+    } catch (IOException e) {
+      Log.w("EncryptingPartDatabase", e);
+      throw new FileNotFoundException("Couldn't read part header!");
+    }
+
     return new DecryptingPartInputStream(path, masterSecret);
   }
 
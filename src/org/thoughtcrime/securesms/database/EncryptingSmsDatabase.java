@@ -24,6 +24,7 @@ import android.util.Pair;
 
 import org.thoughtcrime.securesms.crypto.AsymmetricMasterCipher;
 import org.thoughtcrime.securesms.crypto.AsymmetricMasterSecret;
+import org.thoughtcrime.securesms.crypto.SearchTokenizer;
 import org.whispersystems.textsecure.crypto.InvalidMessageException;
 import org.whispersystems.textsecure.crypto.MasterCipher;
 import org.whispersystems.textsecure.crypto.MasterSecret;
@@ -33,12 +34,25 @@ import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.LRUCache;
 
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class EncryptingSmsDatabase extends SmsDatabase {
 
+  private static final Executor decryptExecutor =
+      Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
   private final PlaintextCache plaintextCache = new PlaintextCache();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
@@ -61,24 +75,64 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   public List<Long> insertMessageOutbox(MasterSecret masterSecret, long threadId,
                                         OutgoingTextMessage message)
   {
-    long type = Types.BASE_OUTBOX_TYPE;
-    message   = message.withBody(getEncryptedBody(masterSecret, message.getMessageBody()));
-    type     |= Types.ENCRYPTION_SYMMETRIC_BIT;
+    long   type      = Types.BASE_OUTBOX_TYPE;
+    String plaintext = message.getMessageBody();
+    message          = message.withBody(getEncryptedBody(masterSecret, plaintext));
+    type            |= Types.ENCRYPTION_SYMMETRIC_BIT;
+
+    List<Long> messageIds = insertMessageOutbox(threadId, message, type);
+
+    if (!message.isKeyExchange()) {
+      indexMessages(masterSecret, messageIds, plaintext);
+    }
 
-    return insertMessageOutbox(threadId, message, type);
+    return messageIds;
   }
 
   public Pair<Long, Long> insertMessageInbox(MasterSecret masterSecret,
                                              IncomingTextMessage message)
   {
-    long type = Types.BASE_INBOX_TYPE;
+    long    type      = Types.BASE_INBOX_TYPE;
+    String  plaintext = message.getMessageBody();
+    boolean encrypted = !message.isSecureMessage() && !message.isEndSession();
 
-    if (!message.isSecureMessage() && !message.isEndSession()) {
+    if (encrypted) {
       type |= Types.ENCRYPTION_SYMMETRIC_BIT;
-      message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+      message = message.withMessageBody(getEncryptedBody(masterSecret, plaintext));
     }
 
-    return insertMessageInbox(message, type);
+    Pair<Long, Long> messageAndThreadId = insertMessageInbox(message, type);
+
+    if (encrypted && !message.isKeyExchange() && !message.isGroup()) {
+      DatabaseFactory.getSearchDatabase(context).indexMessage(masterSecret, messageAndThreadId.first, plaintext);
+    }
+
+    return messageAndThreadId;
+  }
+
+  /**
+   * Inserts a burst of incoming messages, carrying plaintext bodies, in one
+   * transaction.  Bodies are stored encrypted with the local master secret.
+   */
+  public List<Pair<Long, Long>> insertMessagesInbox(MasterSecret masterSecret,
+                                                    List<IncomingTextMessage> messages)
+  {
+    List<IncomingTextMessage> encrypted = new ArrayList<IncomingTextMessage>(messages.size());
+
+    for (IncomingTextMessage message : messages) {
+      encrypted.add(message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody())));
+    }
+
+    List<Pair<Long, Long>>   results = insertMessagesInbox(encrypted, Types.ENCRYPTION_SYMMETRIC_BIT);
+    List<Pair<Long, String>> bodies  = new ArrayList<Pair<Long, String>>(results.size());
+
+    for (int i=0;i<results.size();i++) {
+      bodies.add(new Pair<Long, String>(results.get(i).first, messages.get(i).getMessageBody()));
+    }
+
+    DatabaseFactory.getSearchDatabase(context).indexMessages(masterSecret, bodies);
+
+    return results;
   }
 
   public Pair<Long, Long> insertMessageInbox(AsymmetricMasterSecret masterSecret,
@@ -105,13 +159,38 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     String encryptedBody = getEncryptedBody(masterSecret, body);
     updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
                              Types.ENCRYPTION_SYMMETRIC_BIT);
+    DatabaseFactory.getSearchDatabase(context).indexMessage(masterSecret, messageId, body);
   }
 
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
+  /**
+   * @return messages containing every word in the query, newest first.
+   */
+  public Reader searchMessages(MasterSecret masterSecret, String query) {
+    Set<String> tokens    = new SearchTokenizer(masterSecret).tokenize(query);
+    String      selection = SearchDatabase.getMatchSelection(tokens.size());
+    Cursor      cursor    = super.getMessagesMatching(selection, tokens.toArray(new String[0]));
+
     return new DecryptingReader(masterSecret, cursor);
   }
 
+  private void indexMessages(MasterSecret masterSecret, List<Long> messageIds, String plaintext) {
+    SearchDatabase database = DatabaseFactory.getSearchDatabase(context);
+
+    for (long messageId : messageIds) {
+      database.indexMessage(masterSecret, messageId, plaintext);
+    }
+  }
+
+  /**
+   * @return up to limit messages with ids greater than messageId, in id order.
+   * Paging by the last id seen keeps each page an index seek, however deep
+   * into the table it starts.
+   */
+  public Reader getMessagesAfter(MasterSecret masterSecret, long messageId, int limit) {
+    Cursor cursor = super.getMessagesAfter(messageId, limit);
+    return new PrefetchingDecryptingReader(masterSecret, cursor);
+  }
+
   public Reader getOutgoingMessages(MasterSecret masterSecret) {
     Cursor cursor = super.getOutgoingMessages();
     return new DecryptingReader(masterSecret, cursor);
@@ -131,6 +210,14 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     return new DecryptingReader(masterSecret, cursor);
   }
 
+  /**
+   * @return a reader for walking a cursor front to back, which decrypts ahead of
+   * the current row in the background.
+   */
+  public Reader bulkReaderFor(MasterSecret masterSecret, Cursor cursor) {
+    return new PrefetchingDecryptingReader(masterSecret, cursor);
+  }
+
   public class DecryptingReader extends SmsDatabase.Reader {
 
     private final MasterCipher masterCipher;
@@ -166,6 +253,123 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     }
   }
 
+  /**
+   * A reader for walking many rows in order.  Bodies for the rows ahead of the
+   * current one are decrypted in parallel on a worker pool, so by the time
+   * getNext() reaches a row its plaintext is usually already waiting.
+   */
+  public class PrefetchingDecryptingReader extends DecryptingReader {
+
+    private static final int PREFETCH_WINDOW = 64;
+    private static final int CHUNK_SIZE      = 16;
+
+    private final MasterSecret                 masterSecret;
+    private final Map<Integer, Future<String>> pending = new HashMap<Integer, Future<String>>();
+
+    private int scheduledEnd = 0;
+
+    public PrefetchingDecryptingReader(MasterSecret masterSecret, Cursor cursor) {
+      super(masterSecret, cursor);
+      this.masterSecret = masterSecret;
+    }
+
+    @Override
+    protected DisplayRecord.Body getBody(Cursor cursor) {
+      int position = cursor.getPosition();
+
+      if (position >= scheduledEnd) {
+        cancelPending();
+        scheduledEnd = position;
+      }
+
+      if (scheduledEnd - position < PREFETCH_WINDOW / 2) {
+        schedulePrefetch(cursor, position);
+      }
+
+      Future<String> plaintext = pending.remove(position);
+
+      if (plaintext == null) {
+        return super.getBody(cursor);
+      }
+
+      try {
+        return new DisplayRecord.Body(plaintext.get(), true);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } catch (ExecutionException e) {
+        Log.w("EncryptingSmsDatabase", e);
+        return new DisplayRecord.Body("Error decrypting message.", true);
+      }
+    }
+
+    @Override
+    public void close() {
+      cancelPending();
+      super.close();
+    }
+
+    private void schedulePrefetch(Cursor cursor, int position) {
+      int windowEnd = Math.min(cursor.getCount(), position + PREFETCH_WINDOW);
+      int typeIndex = cursor.getColumnIndexOrThrow(SmsDatabase.TYPE);
+      int bodyIndex = cursor.getColumnIndexOrThrow(SmsDatabase.BODY);
+
+      try {
+        while (scheduledEnd < windowEnd) {
+          final MasterCipher             chunkCipher = new MasterCipher(masterSecret);
+          final List<FutureTask<String>> chunk       = new LinkedList<FutureTask<String>>();
+          int                            chunkEnd    = Math.min(windowEnd, scheduledEnd + CHUNK_SIZE);
+
+          for (int i=scheduledEnd;i<chunkEnd;i++) {
+            cursor.moveToPosition(i);
+
+            final String ciphertext = cursor.getString(bodyIndex);
+
+            if (!SmsDatabase.Types.isSymmetricEncryption(cursor.getLong(typeIndex)) ||
+                ciphertext == null || plaintextCache.get(ciphertext) != null)
+            {
+              continue;
+            }
+
+            FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+              @Override
+              public String call() throws InvalidMessageException {
+                String plaintext = chunkCipher.decryptBody(ciphertext);
+                plaintextCache.put(ciphertext, plaintext);
+                return plaintext;
+              }
+            });
+
+            chunk.add(task);
+            pending.put(i, task);
+          }
+
+          scheduledEnd = chunkEnd;
+
+          if (!chunk.isEmpty()) {
+            decryptExecutor.execute(new Runnable() {
+              @Override
+              public void run() {
+                for (FutureTask<String> task : chunk) {
+                  task.run();
+                }
+              }
+            });
+          }
+        }
+      } finally {
+        cursor.moveToPosition(position);
+      }
+    }
+
+    private void cancelPending() {
+      for (Future<String> task : pending.values()) {
+        task.cancel(false);
+      }
+
+      pending.clear();
+    }
+  }
+
   private static class PlaintextCache {
     private static final int MAX_CACHE_SIZE = 2000;
     private static final Map<String, SoftReference<String>> decryptedBodyCache =
@@ -28,6 +28,7 @@ import ws.com.google.android.mms.pdu.EncodedStringValue;
 import ws.com.google.android.mms.pdu.PduHeaders;
 
 import java.io.UnsupportedEncodingException;
+import java.util.List;
 
 public class MmsAddressDatabase extends Database {
 
@@ -111,6 +112,11 @@ public class MmsAddressDatabase extends Database {
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {messageId+""});
   }
 
+  public void deleteAddressesForIds(List<Long> messageIds) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.delete(TABLE_NAME, getIdSelection(MMS_ID, messageIds), null);
+  }
+
   public void deleteAllAddresses() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
@@ -166,6 +166,25 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     return 0;
   }
 
+  private long getDateReceivedForMessage(long id) {
+    String sql        = "SELECT " + DATE_RECEIVED + " FROM " + TABLE_NAME + " WHERE " + ID + " = ?";
+    String[] sqlArgs  = new String[] {id+""};
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    Cursor cursor = null;
+
+    try {
+      cursor = db.rawQuery(sql, sqlArgs);
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getLong(0) * 1000;
+      else
+        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public long getThreadIdForMessage(long id) {
     String sql        = "SELECT " + THREAD_ID + " FROM " + TABLE_NAME + " WHERE " + ID + " = ?";
     String[] sqlArgs  = new String[] {id+""};
@@ -414,6 +433,17 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     }
   }
 
+  /**
+   * @return up to limit messages with ids greater than messageId, in id order.
+   */
+  public Reader getMessagesAfter(MasterSecret masterSecret, long messageId, int limit) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = database.query(TABLE_NAME, MMS_PROJECTION, ID + " > ?", new String[] {messageId+""},
+                                             null, null, ID, String.valueOf(limit));
+
+    return new Reader(masterSecret, cursor);
+  }
+
   public Reader getNotificationsWithDownloadState(MasterSecret masterSecret, long state) {
     SQLiteDatabase database   = databaseHelper.getReadableDatabase();
     String selection          = STATUS + " = ?";
@@ -460,7 +490,6 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     Trimmer.trimThread(context, threadId);
 
@@ -520,6 +549,8 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       long messageId = db.insert(TABLE_NAME, null, contentValues);
       addressDatabase.insertAddressesForId(messageId, headers);
 
+      DatabaseFactory.getThreadDatabase(context).updateForHiddenMessage(threadId);
+
 //      notifyConversationListeners(threadId);
 //      DatabaseFactory.getThreadDatabase(context).update(threadId);
 //      DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
@@ -534,7 +565,7 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
 
   public void markIncomingNotificationReceived(long threadId) {
     notifyConversationListeners(threadId);
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).updateSnippet(threadId);
 
     if (org.thoughtcrime.securesms.util.Util.isDefaultSmsProvider(context)) {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
@@ -618,13 +649,14 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     partsDatabase.insertParts(messageId, body);
 
     notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-    DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID));
+    DatabaseFactory.getThreadDatabase(context).updateForNewMessage(contentValues.getAsLong(THREAD_ID));
 
     return messageId;
   }
 
   public void delete(long messageId) {
     long threadId                   = getThreadIdForMessage(messageId);
+    long dateReceived               = getDateReceivedForMessage(messageId);
     MmsAddressDatabase addrDatabase = DatabaseFactory.getMmsAddressDatabase(context);
     PartDatabase partDatabase       = DatabaseFactory.getPartDatabase(context);
     partDatabase.deleteParts(messageId);
@@ -632,7 +664,7 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).updateForRemovedMessage(threadId, dateReceived);
     notifyConversationListeners(threadId);
   }
 
@@ -666,35 +698,27 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     }
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    date          = date / 1000;
-    Cursor cursor = null;
-
-    try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      String where      = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
-
-      for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-        where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-      }
-
-      where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
-
-      Log.w("MmsDatabase", "Executing trim query: " + where);
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where, new String[] {threadId+""}, null, null, null);
+  /**
+   * Deletes a set of messages along with their parts and addresses, leaving
+   * thread summaries to the caller.  Part files aren't touched, so that the
+   * caller can unlink them once the deletion has committed.
+   *
+   * @return the data files of the deleted parts.
+   */
+  /*package*/ List<String> deleteMessages(List<Long> messageIds) {
+    if (messageIds.isEmpty()) return Collections.emptyList();
+
+    PartDatabase       partDatabase = DatabaseFactory.getPartDatabase(context);
+    MmsAddressDatabase addrDatabase = DatabaseFactory.getMmsAddressDatabase(context);
+    SQLiteDatabase     database     = databaseHelper.getWritableDatabase();
+    List<String>       partFiles    = partDatabase.deletePartsForMessages(messageIds);
 
-      while (cursor != null && cursor.moveToNext()) {
-        Log.w("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
-      }
+    addrDatabase.deleteAddressesForIds(messageIds);
+    database.delete(TABLE_NAME, getIdSelection(ID, messageIds), null);
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+    return partFiles;
   }
 
-
   public void deleteAllThreads() {
     DatabaseFactory.getPartDatabase(context).deleteAllParts();
     DatabaseFactory.getMmsAddressDatabase(context).deleteAllAddresses();
@@ -20,166 +20,286 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.database.sqlite.SQLiteQueryBuilder;
-import android.util.Log;
+import android.util.Pair;
 
 import org.whispersystems.textsecure.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
-public class MmsSmsDatabase extends Database {
+public class MmsSmsDatabase extends Database implements MmsSmsColumns {
 
   public static final String TRANSPORT     = "transport_type";
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  /**
+   * One row per sms and mms message, with the columns that conversations,
+   * snippets and unread lookups filter and sort on.  Triggers on the sms and
+   * mms tables keep it current within the same statement as every write, so
+   * those lookups are range scans over one index instead of a DISTINCT UNION
+   * over both tables.
+   */
+  static final String INDEX_TABLE_NAME = "message_index";
+  private static final String INDEX_DATE       = "date";
+  private static final String INDEX_TRANSPORT  = "transport";
+  private static final String INDEX_MESSAGE_ID = "message_id";
+
+  public static final String CREATE_INDEX_TABLE = "CREATE TABLE " + INDEX_TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+    THREAD_ID + " INTEGER, " + INDEX_DATE + " INTEGER, " + INDEX_TRANSPORT + " TEXT, " +
+    INDEX_MESSAGE_ID + " INTEGER, " + READ + " INTEGER DEFAULT 0);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE UNIQUE INDEX IF NOT EXISTS message_index_message_index ON " + INDEX_TABLE_NAME + " (" + INDEX_TRANSPORT + ", " + INDEX_MESSAGE_ID + ");",
+    "CREATE INDEX IF NOT EXISTS message_index_thread_date_index ON " + INDEX_TABLE_NAME + " (" + THREAD_ID + ", " + INDEX_DATE + ");",
+    "CREATE INDEX IF NOT EXISTS message_index_read_date_index ON " + INDEX_TABLE_NAME + " (" + READ + ", " + INDEX_DATE + ");"
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS sms_index_insert AFTER INSERT ON sms BEGIN " +
+      "INSERT INTO message_index (thread_id, date, transport, message_id, read) " +
+      "VALUES (new.thread_id, new.date, 'sms', new._id, new.read); END;",
+    "CREATE TRIGGER IF NOT EXISTS sms_index_update AFTER UPDATE OF thread_id, date, read ON sms BEGIN " +
+      "UPDATE message_index SET thread_id = new.thread_id, date = new.date, read = new.read " +
+      "WHERE transport = 'sms' AND message_id = old._id; END;",
+    "CREATE TRIGGER IF NOT EXISTS sms_index_delete AFTER DELETE ON sms BEGIN " +
+      "DELETE FROM message_index WHERE transport = 'sms' AND message_id = old._id; END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_index_insert AFTER INSERT ON mms BEGIN " +
+      "INSERT INTO message_index (thread_id, date, transport, message_id, read) " +
+      "VALUES (new.thread_id, new.date_received * 1000, 'mms', new._id, new.read); END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_index_update AFTER UPDATE OF thread_id, date_received, read ON mms BEGIN " +
+      "UPDATE message_index SET thread_id = new.thread_id, date = new.date_received * 1000, read = new.read " +
+      "WHERE transport = 'mms' AND message_id = old._id; END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_index_delete AFTER DELETE ON mms BEGIN " +
+      "DELETE FROM message_index WHERE transport = 'mms' AND message_id = old._id; END;"
+  };
+
+  private static final String[] SMS_COLUMNS = {
+    ID, BODY, ADDRESS, ADDRESS_DEVICE_ID, READ, THREAD_ID,
+    SmsDatabase.TYPE, SmsDatabase.SUBJECT, SmsDatabase.STATUS
+  };
+
+  private static final String[] MMS_COLUMNS = {
+    ID, READ, THREAD_ID, BODY, ADDRESS, ADDRESS_DEVICE_ID,
+    MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX, MmsDatabase.PART_COUNT,
+    MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID, MmsDatabase.MESSAGE_SIZE,
+    MmsDatabase.EXPIRY, MmsDatabase.STATUS
+  };
+
+  private static final String[] PROJECTION = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
+                                              MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
+                                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
+                                              MmsSmsColumns.NORMALIZED_DATE_SENT,
+                                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
+                                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
+                                              MmsDatabase.STATUS, TRANSPORT};
+
+  private static final String JOINED_TABLES = INDEX_TABLE_NAME + " AS i" +
+    " LEFT JOIN " + SmsDatabase.TABLE_NAME + " AS s ON i." + INDEX_TRANSPORT + " = '" + SMS_TRANSPORT + "'" +
+    " AND s." + ID + " = i." + INDEX_MESSAGE_ID +
+    " LEFT JOIN " + MmsDatabase.TABLE_NAME + " AS m ON i." + INDEX_TRANSPORT + " = '" + MMS_TRANSPORT + "'" +
+    " AND m." + ID + " = i." + INDEX_MESSAGE_ID;
+
+  private static final String JOINED_PROJECTION = getJoinedProjection();
+
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public Cursor getConversation(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    Cursor cursor = queryTables(projection, selection, order, null, null);
+    String order     = "i." + INDEX_DATE + " ASC";
+    String selection = "i." + THREAD_ID + " = " + threadId;
+
+    Cursor cursor = queryTables(selection, order, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns the part of a conversation from the given boundary onwards, oldest
+   * first.  A null boundary returns the whole conversation.
+   *
+   * @param boundary the (normalized date received, id) of the oldest message to include.
+   */
+  public Cursor getConversation(long threadId, Pair<Long, Long> boundary) {
+    if (boundary == null) {
+      return getConversation(threadId);
+    }
+
+    long   date      = boundary.first;
+    long   id        = boundary.second;
+    String order     = "i." + INDEX_DATE + " ASC, i." + INDEX_MESSAGE_ID + " ASC";
+    String selection = "i." + THREAD_ID + " = " + threadId + " AND i." + INDEX_DATE + " >= " + date +
+                       " AND NOT (i." + INDEX_DATE + " = " + date + " AND i." + INDEX_MESSAGE_ID + " < " + id + ")";
+
+    Cursor cursor = queryTables(selection, order, null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
+  /**
+   * Pages backwards through a conversation by (normalized date received, id).
+   *
+   * @param before the boundary to page back from, or null to start from the newest message.
+   * @return the boundary of the page of pageSize messages before <code>before</code>,
+   *         or null if fewer than that remain.
+   */
+  public Pair<Long, Long> getConversationBoundary(long threadId, Pair<Long, Long> before, int pageSize) {
+    String selection = THREAD_ID + " = " + threadId;
+
+    if (before != null) {
+      long date = before.first;
+      long id   = before.second;
+
+      selection += " AND " + INDEX_DATE + " <= " + date + " AND NOT (" +
+                   INDEX_DATE + " = " + date + " AND " + INDEX_MESSAGE_ID + " >= " + id + ")";
+    }
+
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {INDEX_DATE, INDEX_MESSAGE_ID}, selection, null,
+                        null, null, INDEX_DATE + " DESC, " + INDEX_MESSAGE_ID + " DESC",
+                        (pageSize - 1) + ", 1");
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return new Pair<Long, Long>(cursor.getLong(0), cursor.getLong(1));
+      }
+
+      return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public Cursor getConversationSnippet(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    return  queryTables(projection, selection, order, null, "1");
+    String order     = "i." + INDEX_DATE + " DESC";
+    String selection = "i." + THREAD_ID + " = " + threadId;
+
+    return queryTables(selection, order, "1");
   }
 
   public Cursor getUnread() {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.READ, SmsDatabase.TYPE,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.STATUS,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection       = MmsSmsColumns.READ + " = 0";
-
-    return queryTables(projection, selection, order, null, null);
+    String order     = "i." + INDEX_DATE + " ASC";
+    String selection = "i." + READ + " = 0";
+
+    return queryTables(selection, order, null);
   }
 
   public int getConversationCount(long threadId) {
-    int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
-    count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {"COUNT(*)"}, THREAD_ID + " = ?",
+                        new String[] {threadId + ""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getInt(0);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return 0;
+  }
+
+  /**
+   * @return the normalized date of the message that leaves <code>length</code>
+   *         messages at or after it in the thread, or -1 if the thread is no
+   *         longer than that.
+   */
+  public long getTrimCutoff(long threadId, int length) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {INDEX_DATE}, THREAD_ID + " = ?",
+                        new String[] {threadId + ""}, null, null, INDEX_DATE + " DESC",
+                        Math.max(0, length - 1) + ", 1");
+
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getLong(0);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return -1;
+  }
+
+  /**
+   * @return the ids of up to <code>limit</code> of the oldest messages of one
+   *         transport in a thread with a normalized date before <code>date</code>.
+   */
+  /*package*/ List<Long> getMessageIdsBefore(String transport, long threadId, long date, int limit) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    List<Long>     ids    = new LinkedList<Long>();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {INDEX_MESSAGE_ID},
+                        THREAD_ID + " = ? AND " + INDEX_DATE + " < ? AND " + INDEX_TRANSPORT + " = ?",
+                        new String[] {threadId + "", date + "", transport}, null, null,
+                        INDEX_DATE + " ASC", String.valueOf(limit));
+
+      while (cursor != null && cursor.moveToNext()) {
+        ids.add(cursor.getLong(0));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
 
-    return count;
+    return ids;
   }
 
-  private Cursor queryTables(String[] projection, String selection, String order, String groupBy, String limit) {
-    String[] mmsProjection = {MmsDatabase.DATE_SENT + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              TRANSPORT};
-
-    String[] smsProjection = {SmsDatabase.DATE_SENT + " * 1 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              SmsDatabase.DATE_RECEIVED + " * 1 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              TRANSPORT};
-
-
-    SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
-    SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
-
-    mmsQueryBuilder.setDistinct(true);
-    smsQueryBuilder.setDistinct(true);
-
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME);
-    smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-
-    Set<String> mmsColumnsPresent = new HashSet<String>();
-    mmsColumnsPresent.add(MmsSmsColumns.ID);
-    mmsColumnsPresent.add(MmsSmsColumns.READ);
-    mmsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.BODY);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_TYPE);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_BOX);
-    mmsColumnsPresent.add(MmsDatabase.DATE_SENT);
-    mmsColumnsPresent.add(MmsDatabase.DATE_RECEIVED);
-    mmsColumnsPresent.add(MmsDatabase.PART_COUNT);
-    mmsColumnsPresent.add(MmsDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(MmsDatabase.TRANSACTION_ID);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_SIZE);
-    mmsColumnsPresent.add(MmsDatabase.EXPIRY);
-    mmsColumnsPresent.add(MmsDatabase.STATUS);
-
-    Set<String> smsColumnsPresent = new HashSet<String>();
-    smsColumnsPresent.add(MmsSmsColumns.ID);
-    smsColumnsPresent.add(MmsSmsColumns.BODY);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    smsColumnsPresent.add(MmsSmsColumns.READ);
-    smsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    smsColumnsPresent.add(SmsDatabase.TYPE);
-    smsColumnsPresent.add(SmsDatabase.SUBJECT);
-    smsColumnsPresent.add(SmsDatabase.DATE_SENT);
-    smsColumnsPresent.add(SmsDatabase.DATE_RECEIVED);
-    smsColumnsPresent.add(SmsDatabase.STATUS);
-
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 2, MMS_TRANSPORT, selection, null, null, null);
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 2, SMS_TRANSPORT, selection, null, null, null);
-
-    SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
-    String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, null);
-
-    SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
-    outerQueryBuilder.setTables("(" + unionQuery + ")");
-
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, groupBy, null, null, limit);
-
-    Log.w("MmsSmsDatabase", "Executing query: " + query);
+  private Cursor queryTables(String selection, String order, String limit) {
+    String query = "SELECT " + JOINED_PROJECTION + " FROM " + JOINED_TABLES +
+                   " WHERE " + selection + " ORDER BY " + order +
+                   (limit == null ? "" : " LIMIT " + limit);
+
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     return db.rawQuery(query, null);
   }
 
+  private static String getJoinedProjection() {
+    Set<String> smsColumns = new HashSet<String>(Arrays.asList(SMS_COLUMNS));
+    Set<String> mmsColumns = new HashSet<String>(Arrays.asList(MMS_COLUMNS));
+    StringBuilder sb       = new StringBuilder();
+
+    for (String column : PROJECTION) {
+      String expression;
+
+      if      (column.equals(ID))                       expression = "i." + INDEX_MESSAGE_ID;
+      else if (column.equals(THREAD_ID))                expression = "i." + THREAD_ID;
+      else if (column.equals(READ))                     expression = "i." + READ;
+      else if (column.equals(TRANSPORT))                expression = "i." + INDEX_TRANSPORT;
+      else if (column.equals(NORMALIZED_DATE_RECEIVED)) expression = "i." + INDEX_DATE;
+      else if (column.equals(NORMALIZED_DATE_SENT))     expression = "IFNULL(s." + SmsDatabase.DATE_SENT + ", m." + MmsDatabase.DATE_SENT + " * 1000)";
+      else if (smsColumns.contains(column) && mmsColumns.contains(column)) expression = "IFNULL(s." + column + ", m." + column + ")";
+      else if (smsColumns.contains(column))             expression = "s." + column;
+      else if (mmsColumns.contains(column))             expression = "m." + column;
+      else                                              expression = "NULL";
+
+      if (sb.length() != 0) sb.append(", ");
+      sb.append(expression).append(" AS ").append(column);
+    }
+
+    return sb.toString();
+  }
+
   public Reader readerFor(Cursor cursor, MasterSecret masterSecret) {
     return new Reader(cursor, masterSecret);
   }
@@ -188,6 +308,16 @@ public class MmsSmsDatabase extends Database {
     return new Reader(cursor);
   }
 
+  /**
+   * @return a reader for walking a cursor front to back, which decrypts SMS
+   * bodies ahead of the current row in the background.
+   */
+  public Reader bulkReaderFor(Cursor cursor, MasterSecret masterSecret) {
+    return new Reader(cursor,
+                      DatabaseFactory.getEncryptingSmsDatabase(context).bulkReaderFor(masterSecret, cursor),
+                      DatabaseFactory.getMmsDatabase(context).readerFor(masterSecret, cursor));
+  }
+
   public class Reader {
 
     private final Cursor cursor;
@@ -206,6 +336,12 @@ public class MmsSmsDatabase extends Database {
       this.mmsReader = DatabaseFactory.getMmsDatabase(context).readerFor(null, cursor);
     }
 
+    private Reader(Cursor cursor, EncryptingSmsDatabase.Reader smsReader, MmsDatabase.Reader mmsReader) {
+      this.cursor    = cursor;
+      this.smsReader = smsReader;
+      this.mmsReader = mmsReader;
+    }
+
     public MessageRecord getNext() {
       if (cursor == null || !cursor.moveToNext())
         return null;
@@ -224,7 +360,7 @@ public class MmsSmsDatabase extends Database {
     }
 
     public void close() {
-      cursor.close();
+      smsReader.close();
     }
   }
 }
@@ -37,8 +37,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.MmsException;
@@ -77,6 +80,8 @@ public class PartDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + PENDING_PUSH_ATTACHMENT + ");",
   };
 
+  private static final Executor fileDeleteExecutor = Executors.newSingleThreadExecutor();
+
   public PartDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -172,7 +177,7 @@ public class PartDatabase extends Database {
     return contentValues;
   }
 
-  protected FileInputStream getPartInputStream(File file, PduPart part) throws FileNotFoundException {
+  protected InputStream getPartInputStream(File file, PduPart part) throws FileNotFoundException {
     Log.w("PartDatabase", "Reading non-encrypted part from: " + file.getAbsolutePath());
     return new FileInputStream(file);
   }
@@ -185,7 +190,7 @@ public class PartDatabase extends Database {
   private void readPartData(PduPart part, String filename) {
     try {
       File dataFile              = new File(filename);
-      FileInputStream fin        = getPartInputStream(dataFile, part);
+      InputStream fin            = getPartInputStream(dataFile, part);
       ByteArrayOutputStream baos = new ByteArrayOutputStream((int)dataFile.length());
       byte[] buffer              = new byte[512];
       int read;
@@ -207,7 +212,7 @@ public class PartDatabase extends Database {
       File dataFile         = File.createTempFile("part", ".mms", partsDirectory);
       FileOutputStream fout = getPartOutputStream(dataFile, part);
 
-      byte[] buf = new byte[512];
+      byte[] buf = new byte[4096];
       int read;
 
       while ((read = in.read(buf)) != -1) {
@@ -305,11 +310,32 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * Creates an empty file in the parts directory for a part's data to be
+   * streamed into.  The caller must either hand the file to
+   * updateDownloadedPart() once it is complete, or delete it.
+   */
+  public Pair<File, OutputStream> createPartFile(PduPart part) throws MmsException {
+    try {
+      File partsDirectory = context.getDir("parts", Context.MODE_PRIVATE);
+      File dataFile       = File.createTempFile("part", ".mms", partsDirectory);
+
+      return new Pair<File, OutputStream>(dataFile, getPartOutputStream(dataFile, part));
+    } catch (IOException e) {
+      throw new MmsException(e);
+    }
+  }
+
   public void updateDownloadedPart(long messageId, long partId, PduPart part, InputStream data)
       throws MmsException
+  {
+    updateDownloadedPart(messageId, partId, part, writePartData(part, data));
+  }
+
+  public void updateDownloadedPart(long messageId, long partId, PduPart part, File partData)
+      throws MmsException
   {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    File           partData = writePartData(part, data);
 
     part.setContentDisposition(new byte[0]);
     part.setPendingPush(false);
@@ -422,6 +448,55 @@ public class PartDatabase extends Database {
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId+""});
   }
 
+  /**
+   * Deletes the part rows for a set of messages.  The data files are left on
+   * disk for the caller to pass to {@link #deletePartFiles(List)} once the
+   * deletion has committed.
+   *
+   * @return the data files of the deleted parts.
+   */
+  public List<String> deletePartsForMessages(List<Long> mmsIds) {
+    SQLiteDatabase database  = databaseHelper.getWritableDatabase();
+    String         selection = getIdSelection(MMS_ID, mmsIds);
+    List<String>   files     = new LinkedList<String>();
+    Cursor         cursor    = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {DATA}, selection, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String data = cursor.getString(0);
+        if (!TextUtils.isEmpty(data)) {
+          files.add(data);
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    database.delete(TABLE_NAME, selection, null);
+    return files;
+  }
+
+  /**
+   * Unlinks part data files on a background thread.
+   */
+  public static void deletePartFiles(final List<String> files) {
+    if (files.isEmpty()) return;
+
+    fileDeleteExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (String file : files) {
+          if (!new File(file).delete()) {
+            Log.w("PartDatabase", "Couldn't delete part file: " + file);
+          }
+        }
+      }
+    });
+  }
+
   public void deleteAllParts() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
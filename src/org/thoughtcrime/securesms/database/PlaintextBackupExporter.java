@@ -9,7 +9,14 @@ import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 
 import java.io.File;
 import java.io.IOException;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes every SMS out as a plaintext XML backup.  Reading and decrypting
+ * runs on its own thread ahead of the XML serializer, and only a bounded
+ * number of messages are held in memory at once.
+ */
 public class PlaintextBackupExporter {
 
   public static void exportPlaintextToSd(Context context, MasterSecret masterSecret)
@@ -32,35 +39,112 @@ public class PlaintextBackupExporter {
   private static void exportPlaintext(Context context, MasterSecret masterSecret)
       throws IOException
   {
-    int count               = DatabaseFactory.getSmsDatabase(context).getMessageCount();
+    int              count  = DatabaseFactory.getSmsDatabase(context).getMessageCount();
     XmlBackup.Writer writer = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
+    ExportItemStream items  = new ExportItemStream(context, masterSecret);
 
+    try {
+      XmlBackup.XmlBackupItem item;
 
-    SmsMessageRecord record;
-    EncryptingSmsDatabase.Reader reader = null;
-    int skip                            = 0;
-    int ROW_LIMIT                       = 500;
-
-    do {
-      if (reader != null)
-        reader.close();
-
-      reader = DatabaseFactory.getEncryptingSmsDatabase(context).getMessages(masterSecret, skip, ROW_LIMIT);
+      while ((item = items.take()) != null) {
+        writer.writeItem(item);
+      }
+    } finally {
+      items.close();
+    }
 
-      while ((record = reader.getNext()) != null) {
-        XmlBackup.XmlBackupItem item =
-            new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
-                                        record.getDateReceived(),
-                                        MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
-                                        null, record.getDisplayBody().toString(), null,
-                                        1, record.getDeliveryStatus());
+    writer.close();
+  }
 
-        writer.writeItem(item);
+  /**
+   * Reads and decrypts messages on its own thread, a bounded number of items
+   * ahead of the XML writer.  Messages are paged in by id, so each page starts
+   * from an index seek rather than skipping over every row before it.
+   */
+  private static class ExportItemStream implements Runnable {
+
+    private static final int PAGE_SIZE  = 500;
+    private static final int QUEUE_SIZE = 1000;
+
+    private static final XmlBackup.XmlBackupItem END_OF_MESSAGES = new XmlBackup.XmlBackupItem();
+
+    private final Context                                context;
+    private final MasterSecret                           masterSecret;
+    private final BlockingQueue<XmlBackup.XmlBackupItem> queue;
+
+    private volatile boolean          closed = false;
+    private volatile RuntimeException failure;
+
+    public ExportItemStream(Context context, MasterSecret masterSecret) {
+      this.context      = context.getApplicationContext();
+      this.masterSecret = masterSecret;
+      this.queue        = new ArrayBlockingQueue<XmlBackup.XmlBackupItem>(QUEUE_SIZE);
+
+      new Thread(this, "PlaintextBackupReader").start();
+    }
+
+    @Override
+    public void run() {
+      EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+      long                  lastId   = 0;
+
+      try {
+        while (!closed) {
+          EncryptingSmsDatabase.Reader reader = database.getMessagesAfter(masterSecret, lastId, PAGE_SIZE);
+          SmsMessageRecord             record;
+          int                          read   = 0;
+
+          try {
+            while (!closed && (record = reader.getNext()) != null) {
+              queue.put(getItem(record));
+              lastId = record.getId();
+              read++;
+            }
+          } finally {
+            reader.close();
+          }
+
+          if (read < PAGE_SIZE) break;
+        }
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } catch (RuntimeException e) {
+        failure = e;
+      } finally {
+        if (!closed) {
+          try {
+            queue.put(END_OF_MESSAGES);
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        }
       }
+    }
 
-      skip += ROW_LIMIT;
-    } while (reader.getCount() > 0);
+    public XmlBackup.XmlBackupItem take() {
+      try {
+        XmlBackup.XmlBackupItem item = queue.take();
 
-    writer.close();
+        if (item != END_OF_MESSAGES) return item;
+        if (failure != null)         throw failure;
+
+        return null;
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    public void close() {
+      closed = true;
+      queue.clear();
+    }
+
+    private XmlBackup.XmlBackupItem getItem(SmsMessageRecord record) {
+      return new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
+                                         record.getDateReceived(),
+                                         MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
+                                         null, record.getDisplayBody().toString(), null,
+                                         1, record.getDeliveryStatus());
+    }
   }
 }
@@ -1,12 +1,10 @@
 package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.whispersystems.textsecure.crypto.MasterCipher;
 import org.whispersystems.textsecure.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
@@ -15,10 +13,18 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
-
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Restores a plaintext XML backup.  The backup is parsed on its own thread,
+ * each address is resolved to a thread once, and messages are encrypted and
+ * written in batches by an {@link SmsBatchWriter}.  Thread summaries are
+ * rebuilt once, after the whole backup has been read or the import fails.
+ */
 public class PlaintextBackupImporter {
 
   public static void importPlaintextFromSd(Context context, MasterSecret masterSecret)
@@ -44,81 +50,164 @@ public class PlaintextBackupImporter {
       throws IOException
   {
     Log.w("PlaintextBackupImporter", "importPlaintext()");
-    SmsDatabase    db          = DatabaseFactory.getSmsDatabase(context);
-    SQLiteDatabase transaction = db.beginTransaction();
+    ThreadDatabase    threads   = DatabaseFactory.getThreadDatabase(context);
+    SmsBatchWriter    writer    = new SmsBatchWriter(context, masterSecret);
+    Map<String, Long> threadIds = new HashMap<String, Long>();
+    long              startTime = SystemClock.elapsedRealtime();
+    BackupItemStream  items     = null;
 
     try {
-      ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(getPlaintextExportDirectoryPath());
-      MasterCipher   masterCipher    = new MasterCipher(masterSecret);
-      Set<Long>      modifiedThreads = new HashSet<Long>();
+      items = new BackupItemStream(new XmlBackup(getPlaintextExportDirectoryPath()));
       XmlBackup.XmlBackupItem item;
 
-      while ((item = backup.getNext()) != null) {
-        try {
-          Recipients      recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
-          long            threadId   = threads.getThreadIdFor(recipients);
-          SQLiteStatement statement  = db.createInsertStatement(transaction);
-
-          if (item.getAddress() == null || item.getAddress().equals("null"))
-            continue;
-
-          addStringToStatement(statement, 1, item.getAddress());
-          addNullToStatement(statement, 2);
-          addLongToStatement(statement, 3, item.getDate());
-          addLongToStatement(statement, 4, item.getDate());
-          addLongToStatement(statement, 5, item.getProtocol());
-          addLongToStatement(statement, 6, item.getRead());
-          addLongToStatement(statement, 7, item.getStatus());
-          addTranslatedTypeToStatement(statement, 8, item.getType());
-          addNullToStatement(statement, 9);
-          addStringToStatement(statement, 10, item.getSubject());
-          addEncryptedStingToStatement(masterCipher, statement, 11, item.getBody());
-          addStringToStatement(statement, 12, item.getServiceCenter());
-          addLongToStatement(statement, 13, threadId);
-          modifiedThreads.add(threadId);
-          statement.execute();
-        } catch (RecipientFormattingException rfe) {
-          Log.w("PlaintextBackupImporter", rfe);
-        }
-      }
+      while ((item = items.take()) != null) {
+        if (item.getAddress() == null || item.getAddress().equals("null"))
+          continue;
+
+        Long threadId = getThreadId(context, threads, threadIds, item.getAddress());
 
-      for (long threadId : modifiedThreads) {
-        threads.update(threadId);
+        if (threadId == null)
+          continue;
+
+        writer.add(new SmsBatchWriter.Row(item.getAddress(), null, item.getDate(),
+                                          (long)item.getProtocol(), (long)item.getRead(),
+                                          (long)item.getStatus(),
+                                          SmsDatabase.Types.translateFromSystemBaseType(item.getType()),
+                                          null, getNullableString(item.getSubject()),
+                                          getNullableString(item.getBody()),
+                                          getNullableString(item.getServiceCenter()),
+                                          threadId));
       }
 
+      writer.finish();
       Log.w("PlaintextBackupImporter", "Exited loop");
     } catch (XmlPullParserException e) {
       Log.w("PlaintextBackupImporter", e);
       throw new IOException("XML Parsing error!");
     } finally {
-      db.endTransaction(transaction);
+      writer.close();
+
+      if (items != null)
+        items.close();
+
+      updateThreads(context, masterSecret, threads, writer.getWrittenThreads());
     }
+
+    long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+    Log.w("PlaintextBackupImporter", "Imported " + writer.getWrittenCount() + " messages in " + elapsed +
+                                     "ms, " + (writer.getWrittenCount() * 1000L / elapsed) + " rows/s");
   }
 
-  private static void addEncryptedStingToStatement(MasterCipher masterCipher, SQLiteStatement statement, int index, String value) {
-    if (value == null || value.equals("null")) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, masterCipher.encryptBody(value));
+  /**
+   * Rebuilds the threads that committed batches wrote to, and restarts the
+   * search backfill over them.  An import that fails partway keeps the
+   * batches it already wrote, so this runs either way.
+   */
+  private static void updateThreads(Context context, MasterSecret masterSecret,
+                                    ThreadDatabase threads, Set<Long> modifiedThreads)
+  {
+    if (modifiedThreads.isEmpty()) return;
+
+    for (long threadId : modifiedThreads) {
+      threads.update(threadId);
     }
-  }
 
-  private static void addTranslatedTypeToStatement(SQLiteStatement statement, int index, int type) {
-    statement.bindLong(index, SmsDatabase.Types.translateFromSystemBaseType(type) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
+    threads.notifyConversationListeners(modifiedThreads);
+    threads.notifyConversationListListeners();
+    SearchIndexer.reschedule(context, masterSecret);
   }
 
-  private static void addStringToStatement(SQLiteStatement statement, int index, String value) {
-    if (value == null || value.equals("null")) statement.bindNull(index);
-    else                                       statement.bindString(index, value);
-  }
+  private static Long getThreadId(Context context, ThreadDatabase threads,
+                                  Map<String, Long> threadIds, String address)
+  {
+    if (threadIds.containsKey(address)) {
+      return threadIds.get(address);
+    }
 
-  private static void addNullToStatement(SQLiteStatement statement, int index) {
-    statement.bindNull(index);
+    Long threadId = null;
+
+    try {
+      Recipients recipients = RecipientFactory.getRecipientsFromString(context, address, false);
+      threadId              = threads.getThreadIdFor(recipients);
+    } catch (RecipientFormattingException rfe) {
+      Log.w("PlaintextBackupImporter", rfe);
+    }
+
+    threadIds.put(address, threadId);
+    return threadId;
   }
 
-  private static void addLongToStatement(SQLiteStatement statement, int index, long value) {
-    statement.bindLong(index, value);
+  private static String getNullableString(String value) {
+    if (value == null || value.equals("null")) return null;
+    else                                       return value;
   }
 
+  /**
+   * Parses the backup on its own thread, a bounded number of items ahead of
+   * the importer, so parsing overlaps with encrypting and writing.
+   */
+  private static class BackupItemStream implements Runnable {
+
+    private static final int QUEUE_SIZE = 1000;
+
+    private static final XmlBackup.XmlBackupItem END_OF_BACKUP = new XmlBackup.XmlBackupItem();
+
+    private final XmlBackup                              backup;
+    private final BlockingQueue<XmlBackup.XmlBackupItem> queue;
+
+    private volatile boolean                closed  = false;
+    private volatile IOException            ioException;
+    private volatile XmlPullParserException parseException;
+
+    public BackupItemStream(XmlBackup backup) {
+      this.backup = backup;
+      this.queue  = new ArrayBlockingQueue<XmlBackup.XmlBackupItem>(QUEUE_SIZE);
+
+      new Thread(this, "PlaintextBackupParser").start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        XmlBackup.XmlBackupItem item;
+
+        while (!closed && (item = backup.getNext()) != null) {
+          queue.put(item);
+        }
+      } catch (IOException e) {
+        ioException = e;
+      } catch (XmlPullParserException e) {
+        parseException = e;
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } finally {
+        if (!closed) {
+          try {
+            queue.put(END_OF_BACKUP);
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        }
+      }
+    }
+
+    public XmlBackup.XmlBackupItem take() throws IOException, XmlPullParserException {
+      try {
+        XmlBackup.XmlBackupItem item = queue.take();
+
+        if (item != END_OF_BACKUP) return item;
+        if (ioException != null)    throw ioException;
+        if (parseException != null) throw parseException;
+
+        return null;
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    public void close() {
+      closed = true;
+      queue.clear();
+    }
+  }
 }
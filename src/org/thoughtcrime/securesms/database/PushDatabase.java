@@ -5,6 +5,8 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import org.whispersystems.textsecure.crypto.MasterCipher;
+import org.whispersystems.textsecure.crypto.MasterSecret;
 import org.whispersystems.textsecure.push.IncomingPushMessage;
 import org.whispersystems.textsecure.util.Base64;
 import org.whispersystems.textsecure.util.Util;
@@ -21,9 +23,11 @@ public class PushDatabase extends Database {
   public  static final String DEVICE_ID    = "device_id";
   public  static final String BODY         = "body";
   public  static final String TIMESTAMP    = "timestamp";
+  public  static final String DECRYPTED    = "decrypted";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
-      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + BODY + " TEXT, " + TIMESTAMP + " INTEGER);";
+      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + BODY + " TEXT, " + TIMESTAMP + " INTEGER, " +
+      DECRYPTED + " INTEGER DEFAULT 0);";
 
   public PushDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -40,6 +44,20 @@ public class PushDatabase extends Database {
     return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
   }
 
+  /**
+   * Replaces a message's ciphertext with its decrypted body, encrypted under
+   * the master secret.  Once the session has advanced past a message, it
+   * can't be decrypted a second time, so the plaintext has to be kept here
+   * until the message has been written to its final table.
+   */
+  public void markDecrypted(MasterSecret masterSecret, long id, byte[] plaintext) {
+    ContentValues values = new ContentValues(2);
+    values.put(BODY, Base64.encodeBytes(new MasterCipher(masterSecret).encryptBytes(plaintext)));
+    values.put(DECRYPTED, 1);
+
+    databaseHelper.getWritableDatabase().update(TABLE_NAME, values, ID_WHERE, new String[] {id+""});
+  }
+
   public Cursor getPending() {
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
   }
@@ -76,6 +94,10 @@ public class PushDatabase extends Database {
       }
     }
 
+    public boolean isCurrentDecrypted() {
+      return cursor.getInt(cursor.getColumnIndexOrThrow(DECRYPTED)) == 1;
+    }
+
     public long getCurrentId() {
       return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
     }
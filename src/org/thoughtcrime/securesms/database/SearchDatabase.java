@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Pair;
+
+import org.thoughtcrime.securesms.crypto.SearchTokenizer;
+import org.whispersystems.textsecure.crypto.MasterSecret;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A posting table of blind search tokens for SMS bodies.  Tokens are produced
+ * by {@link SearchTokenizer}, so lookups work without the message bodies ever
+ * being stored in the clear.
+ */
+public class SearchDatabase extends Database {
+
+  private static final String TABLE_NAME = "search_tokens";
+  private static final String TOKEN      = "token";
+  private static final String MESSAGE_ID = "message_id";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" +
+    TOKEN + " TEXT, " + MESSAGE_ID + " INTEGER);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE UNIQUE INDEX IF NOT EXISTS search_token_index ON " + TABLE_NAME + " (" + TOKEN + ", " + MESSAGE_ID + ");",
+    "CREATE INDEX IF NOT EXISTS search_message_id_index ON " + TABLE_NAME + " (" + MESSAGE_ID + ");"
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS sms_search_delete AFTER DELETE ON " + SmsDatabase.TABLE_NAME +
+      " BEGIN DELETE FROM " + TABLE_NAME + " WHERE " + MESSAGE_ID + " = old." + SmsDatabase.ID + "; END;"
+  };
+
+  private static final String INSERT_POSTING = "INSERT OR IGNORE INTO " + TABLE_NAME +
+                                               " (" + TOKEN + ", " + MESSAGE_ID + ") VALUES (?, ?)";
+
+  public SearchDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public void indexMessage(MasterSecret masterSecret, long messageId, String plaintext) {
+    SearchTokenizer tokenizer = new SearchTokenizer(masterSecret);
+    SQLiteDatabase  db        = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      SQLiteStatement statement = db.compileStatement(INSERT_POSTING);
+
+      try {
+        db.delete(TABLE_NAME, MESSAGE_ID + " = ?", new String[] {messageId+""});
+        insertPostings(statement, messageId, tokenizer.tokenize(plaintext));
+      } finally {
+        statement.close();
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Indexes a batch of (message id, plaintext) pairs in one transaction.
+   * Postings that already exist are left alone, so batches can be repeated.
+   */
+  public void indexMessages(MasterSecret masterSecret, List<Pair<Long, String>> messages) {
+    SearchTokenizer tokenizer = new SearchTokenizer(masterSecret);
+    SQLiteDatabase  db        = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      SQLiteStatement statement = db.compileStatement(INSERT_POSTING);
+
+      try {
+        for (Pair<Long, String> message : messages) {
+          insertPostings(statement, message.first, tokenizer.tokenize(message.second));
+        }
+      } finally {
+        statement.close();
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * @return a selection on the sms table matching messages that contain every
+   * token, to be bound with the tokens themselves as arguments.
+   */
+  static String getMatchSelection(int tokenCount) {
+    StringBuilder placeholders = new StringBuilder();
+
+    for (int i=0;i<tokenCount;i++) {
+      if (i > 0) placeholders.append(", ");
+      placeholders.append("?");
+    }
+
+    return SmsDatabase.ID + " IN (SELECT " + MESSAGE_ID + " FROM " + TABLE_NAME +
+           " WHERE " + TOKEN + " IN (" + placeholders + ")" +
+           " GROUP BY " + MESSAGE_ID + " HAVING COUNT(*) = " + tokenCount + ")";
+  }
+
+  private void insertPostings(SQLiteStatement statement, long messageId, Set<String> tokens) {
+    for (String token : tokens) {
+      statement.clearBindings();
+      statement.bindString(1, token);
+      statement.bindLong(2, messageId);
+      statement.execute();
+    }
+  }
+}
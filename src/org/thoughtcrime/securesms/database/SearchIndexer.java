@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+import android.util.Pair;
+
+import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.textsecure.crypto.InvalidMessageException;
+import org.whispersystems.textsecure.crypto.MasterCipher;
+import org.whispersystems.textsecure.crypto.MasterSecret;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds the search index over message history that predates it, newest
+ * messages first, on a background thread.  New messages are indexed as
+ * they're stored, so this only ever has to walk backwards.  Progress is
+ * saved after each batch, and re-indexing a batch is harmless, so it can
+ * be interrupted at any point.
+ */
+public class SearchIndexer {
+
+  private static final int BATCH_SIZE = 200;
+
+  private static final Executor executor = Executors.newSingleThreadExecutor();
+
+  private static volatile boolean cancelled = false;
+  private static boolean          scheduled = false;
+  private static boolean          restart   = false;
+
+  public static synchronized void schedule(final Context context, final MasterSecret masterSecret) {
+    cancelled = false;
+
+    if (scheduled || TextSecurePreferences.getSearchIndexPosition(context) == 0) return;
+    scheduled = true;
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        try {
+          index(context.getApplicationContext(), masterSecret);
+        } finally {
+          synchronized (SearchIndexer.class) {
+            scheduled = false;
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Starts the backfill over from the newest message, for when history has
+   * been added underneath the index by an import.
+   */
+  public static synchronized void reschedule(Context context, MasterSecret masterSecret) {
+    TextSecurePreferences.setSearchIndexPosition(context, -1);
+    restart = true;
+
+    schedule(context, masterSecret);
+  }
+
+  public static void cancel() {
+    cancelled = true;
+  }
+
+  private static void index(Context context, MasterSecret masterSecret) {
+    SmsDatabase    smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    SearchDatabase searchDatabase = DatabaseFactory.getSearchDatabase(context);
+    MasterCipher   masterCipher   = new MasterCipher(masterSecret);
+    long           position;
+    int            indexed        = 0;
+
+    synchronized (SearchIndexer.class) {
+      position = TextSecurePreferences.getSearchIndexPosition(context);
+      restart  = false;
+    }
+
+    if (position < 0) position = Long.MAX_VALUE;
+
+    while (!cancelled) {
+      List<Pair<Long, String>> batch  = new LinkedList<Pair<Long, String>>();
+      SmsDatabase.Reader       reader = smsDatabase.readerFor(smsDatabase.getMessagesBefore(position, BATCH_SIZE));
+      SmsMessageRecord         record;
+      long                     lowest = 0;
+
+      try {
+        while ((record = reader.getNext()) != null) {
+          lowest = record.getId();
+
+          if (SmsDatabase.Types.isSymmetricEncryption(record.getType()) &&
+              !record.isKeyExchange() && !record.isGroupAction())
+          {
+            try {
+              String plaintext = masterCipher.decryptBody(record.getBody().getBody());
+              batch.add(new Pair<Long, String>(record.getId(), plaintext));
+            } catch (InvalidMessageException e) {
+              Log.w("SearchIndexer", "Not indexing undecryptable message: " + record.getId());
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+
+      if (!batch.isEmpty()) {
+        searchDatabase.indexMessages(masterSecret, batch);
+        indexed += batch.size();
+      }
+
+      synchronized (SearchIndexer.class) {
+        if (restart) {
+          restart  = false;
+          position = Long.MAX_VALUE;
+          continue;
+        }
+
+        position = lowest;
+        TextSecurePreferences.setSearchIndexPosition(context, position);
+
+        if (position == 0) {
+          scheduled = false;
+          break;
+        }
+      }
+    }
+
+    if (indexed > 0) {
+      Log.w("SearchIndexer", "Indexed " + indexed + " messages for search.");
+    }
+  }
+}
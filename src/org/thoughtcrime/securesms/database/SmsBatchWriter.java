@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.whispersystems.textsecure.crypto.MasterCipher;
+import org.whispersystems.textsecure.crypto.MasterSecret;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes imported messages into the sms table in batches.  While one batch's
+ * bodies are encrypted on a worker pool, the caller fills the next batch, and
+ * the batch before is written in its own transaction.  Thread summaries are
+ * left to the caller, who can rebuild each thread once from finish(), or
+ * from getWrittenThreads() if the write fails partway.
+ */
+class SmsBatchWriter {
+
+  private static final int BATCH_SIZE     = 250;
+  private static final int ENCRYPT_CHUNKS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  private final SmsDatabase     database;
+  private final MasterSecret    masterSecret;
+  private final ExecutorService executor;
+  private final Set<Long>       threadIds = new LinkedHashSet<Long>();
+
+  private List<Row>       batch       = new ArrayList<Row>(BATCH_SIZE);
+  private List<Row>       encrypting  = null;
+  private List<Future<?>> encryptions = null;
+  private int             written     = 0;
+
+  public SmsBatchWriter(Context context, MasterSecret masterSecret) {
+    this.database     = DatabaseFactory.getSmsDatabase(context);
+    this.masterSecret = masterSecret;
+    this.executor     = Executors.newFixedThreadPool(ENCRYPT_CHUNKS);
+  }
+
+  public void add(Row row) {
+    batch.add(row);
+
+    if (batch.size() >= BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  /**
+   * @return the number of messages written so far.
+   */
+  public int getWrittenCount() {
+    return written;
+  }
+
+  /**
+   * @return the threads that committed batches have written messages to.
+   */
+  public Set<Long> getWrittenThreads() {
+    return threadIds;
+  }
+
+  /**
+   * Writes everything that's been added, and releases the worker pool.
+   *
+   * @return the threads that messages were written to.
+   */
+  public Set<Long> finish() {
+    try {
+      flush();
+      writeEncrypted();
+    } finally {
+      close();
+    }
+
+    return threadIds;
+  }
+
+  public void close() {
+    executor.shutdown();
+  }
+
+  private void flush() {
+    if (batch.isEmpty()) return;
+
+    List<Future<?>> batchEncryptions = encrypt(batch);
+
+    writeEncrypted();
+
+    encrypting  = batch;
+    encryptions = batchEncryptions;
+    batch       = new ArrayList<Row>(BATCH_SIZE);
+  }
+
+  private List<Future<?>> encrypt(List<Row> rows) {
+    List<Future<?>> futures   = new LinkedList<Future<?>>();
+    int             chunkSize = (rows.size() + ENCRYPT_CHUNKS - 1) / ENCRYPT_CHUNKS;
+
+    for (int i=0;i<rows.size();i+=chunkSize) {
+      final List<Row> chunk = rows.subList(i, Math.min(rows.size(), i + chunkSize));
+
+      futures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          MasterCipher masterCipher = new MasterCipher(masterSecret);
+
+          for (Row row : chunk) {
+            if (row.body != null) {
+              row.body = masterCipher.encryptBody(row.body);
+            }
+          }
+        }
+      }));
+    }
+
+    return futures;
+  }
+
+  private void writeEncrypted() {
+    if (encrypting == null) return;
+
+    try {
+      for (Future<?> encryption : encryptions) {
+        encryption.get();
+      }
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } catch (ExecutionException e) {
+      throw new AssertionError(e);
+    }
+
+    SQLiteDatabase transaction = database.beginTransaction();
+
+    try {
+      SQLiteStatement statement = database.createInsertStatement(transaction);
+
+      try {
+        for (Row row : encrypting) {
+          row.bind(statement);
+          statement.execute();
+        }
+      } finally {
+        statement.close();
+      }
+
+      transaction.setTransactionSuccessful();
+    } finally {
+      transaction.endTransaction();
+    }
+
+    for (Row row : encrypting) {
+      threadIds.add(row.threadId);
+    }
+
+    written    += encrypting.size();
+    encrypting  = null;
+    encryptions = null;
+  }
+
+  public static class Row {
+    private final String address;
+    private final Long   person;
+    private final Long   date;
+    private final Long   protocol;
+    private final Long   read;
+    private final Long   status;
+    private final long   type;
+    private final Long   replyPathPresent;
+    private final String subject;
+    private final String serviceCenter;
+    private final long   threadId;
+
+    private String body;
+
+    public Row(String address, Long person, Long date, Long protocol, Long read, Long status,
+               long type, Long replyPathPresent, String subject, String body,
+               String serviceCenter, long threadId)
+    {
+      this.address          = address;
+      this.person           = person;
+      this.date             = date;
+      this.protocol         = protocol;
+      this.read             = read;
+      this.status           = status;
+      this.type             = type | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT;
+      this.replyPathPresent = replyPathPresent;
+      this.subject          = subject;
+      this.body             = body;
+      this.serviceCenter    = serviceCenter;
+      this.threadId         = threadId;
+    }
+
+    private void bind(SQLiteStatement statement) {
+      statement.clearBindings();
+
+      bindString(statement, 1, address);
+      bindLong(statement, 2, person);
+      bindLong(statement, 3, date);
+      bindLong(statement, 4, date);
+      bindLong(statement, 5, protocol);
+      bindLong(statement, 6, read);
+      bindLong(statement, 7, status);
+      statement.bindLong(8, type);
+      bindLong(statement, 9, replyPathPresent);
+      bindString(statement, 10, subject);
+      bindString(statement, 11, body);
+      bindString(statement, 12, serviceCenter);
+      statement.bindLong(13, threadId);
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+      if (value == null) statement.bindNull(index);
+      else               statement.bindString(index, value);
+    }
+
+    private static void bindLong(SQLiteStatement statement, int index, Long value) {
+      if (value == null) statement.bindNull(index);
+      else               statement.bindLong(index, value);
+    }
+  }
+}
@@ -39,8 +39,11 @@ import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.Trimmer;
 import org.whispersystems.textsecure.util.Util;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -97,7 +100,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).updateSnippet(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
@@ -121,6 +124,24 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     }
   }
 
+  private Pair<Long, Long> getThreadIdAndDateForMessage(long id) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, DATE_RECEIVED}, ID_WHERE,
+                        new String[] {id+""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst())
+        return new Pair<Long, Long>(cursor.getLong(0), cursor.getLong(1));
+      else
+        return new Pair<Long, Long>(-1L, 0L);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public int getMessageCount() {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -243,12 +264,95 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).updateSnippet(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
 
   protected Pair<Long, Long> insertMessageInbox(IncomingTextMessage message, long type) {
+    type = getInboxType(message, type);
+
+    boolean        unread    = isUnread(message);
+    long           threadId  = getThreadIdForInbox(message);
+    ContentValues  values    = getInboxValues(message, type, threadId, unread);
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    long           messageId = db.insert(TABLE_NAME, null, values);
+
+    DatabaseFactory.getThreadDatabase(context).updateForNewMessage(threadId, message.getMessageBody(),
+                                                                   values.getAsLong(DATE_RECEIVED),
+                                                                   type, unread);
+    notifyConversationListeners(threadId);
+    Trimmer.trimThread(context, threadId);
+
+    return new Pair<Long, Long>(messageId, threadId);
+  }
+
+  /**
+   * Inserts a burst of incoming messages in a single transaction.  Each thread
+   * touched by the batch is updated once, from the last message inserted into it,
+   * rather than re-querying its snippet and count after every message.
+   *
+   * @param encryptionType the encryption bits every message body is stored with.
+   * @return the (messageId, threadId) pair for each message, in order.
+   */
+  protected List<Pair<Long, Long>> insertMessagesInbox(List<IncomingTextMessage> messages,
+                                                       long encryptionType)
+  {
+    List<Pair<Long, Long>>    results = new ArrayList<Pair<Long, Long>>(messages.size());
+    Map<Long, ThreadSnapshot> threads = new LinkedHashMap<Long, ThreadSnapshot>();
+    SQLiteDatabase            db      = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      for (IncomingTextMessage message : messages) {
+        long type = getInboxType(message, Types.BASE_INBOX_TYPE);
+        type      = (type & (Types.TOTAL_MASK - Types.ENCRYPTION_MASK)) | encryptionType;
+
+        boolean        unread    = isUnread(message);
+        long           threadId  = getThreadIdForInbox(message);
+        ContentValues  values    = getInboxValues(message, type, threadId, unread);
+        long           messageId = db.insert(TABLE_NAME, null, values);
+        ThreadSnapshot snapshot  = threads.get(threadId);
+
+        if (snapshot == null) {
+          snapshot = new ThreadSnapshot();
+          threads.put(threadId, snapshot);
+        }
+
+        snapshot.count++;
+        snapshot.unread |= unread;
+        snapshot.body    = message.getMessageBody();
+        snapshot.date    = values.getAsLong(DATE_RECEIVED);
+        snapshot.type    = type;
+
+        results.add(new Pair<Long, Long>(messageId, threadId));
+      }
+
+      ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
+
+      for (Map.Entry<Long, ThreadSnapshot> thread : threads.entrySet()) {
+        ThreadSnapshot snapshot = thread.getValue();
+        threadDatabase.updateForNewMessages(thread.getKey(), snapshot.count, snapshot.body,
+                                            snapshot.date, snapshot.type, snapshot.unread);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (long threadId : threads.keySet()) {
+      notifyConversationListeners(threadId);
+      Trimmer.trimThread(context, threadId);
+    }
+
+    notifyConversationListListeners();
+
+    return results;
+  }
+
+  private long getInboxType(IncomingTextMessage message, long type) {
     if (message.isKeyExchange()) {
       type |= Types.KEY_EXCHANGE_BIT;
       if      (((IncomingKeyExchangeMessage)message).isStale())          type |= Types.KEY_EXCHANGE_STALE_BIT;
@@ -272,6 +376,15 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
 
     if (message.isPush()) type |= Types.PUSH_MESSAGE_BIT;
 
+    return type;
+  }
+
+  private boolean isUnread(IncomingTextMessage message) {
+    return org.thoughtcrime.securesms.util.Util.isDefaultSmsProvider(context) ||
+           message.isSecureMessage() || message.isKeyExchange();
+  }
+
+  private long getThreadIdForInbox(IncomingTextMessage message) {
     Recipients recipients;
 
     try {
@@ -294,14 +407,13 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
       groupRecipients = null;
     }
 
-    boolean    unread     = org.thoughtcrime.securesms.util.Util.isDefaultSmsProvider(context) ||
-                            message.isSecureMessage() || message.isKeyExchange();
-
-    long       threadId;
-
-    if (groupRecipients == null) threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipients);
-    else                         threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(groupRecipients);
+    if (groupRecipients == null) return DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipients);
+    else                         return DatabaseFactory.getThreadDatabase(context).getThreadIdFor(groupRecipients);
+  }
 
+  private ContentValues getInboxValues(IncomingTextMessage message, long type,
+                                       long threadId, boolean unread)
+  {
     ContentValues values = new ContentValues(6);
     values.put(ADDRESS, message.getSender());
     values.put(ADDRESS_DEVICE_ID,  message.getSenderDeviceId());
@@ -319,18 +431,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     values.put(TYPE, type);
     values.put(THREAD_ID, threadId);
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long messageId    = db.insert(TABLE_NAME, null, values);
-
-    if (unread) {
-      DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
-    }
-
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
-    notifyConversationListeners(threadId);
-    Trimmer.trimThread(context, threadId);
-
-    return new Pair<Long, Long>(messageId, threadId);
+    return values;
   }
 
   public Pair<Long, Long> insertMessageInbox(IncomingTextMessage message) {
@@ -358,7 +459,8 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
       SQLiteDatabase db = databaseHelper.getWritableDatabase();
       messageIds.add(db.insert(TABLE_NAME, ADDRESS, contentValues));
 
-      DatabaseFactory.getThreadDatabase(context).update(threadId);
+      DatabaseFactory.getThreadDatabase(context).updateForNewMessage(threadId, message.getMessageBody(),
+                                                                     date, type, false);
       notifyConversationListeners(threadId);
       Trimmer.trimThread(context, threadId);
     }
@@ -366,9 +468,10 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     return messageIds;
   }
 
-  Cursor getMessages(int skip, int limit) {
+  Cursor getMessagesAfter(long messageId, int limit) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, null, null, null, null, ID, skip + "," + limit);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " > ?", new String[] {messageId+""},
+                    null, null, ID, String.valueOf(limit));
   }
 
   Cursor getOutgoingMessages() {
@@ -391,6 +494,17 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     return db.query(TABLE_NAME, MESSAGE_PROJECTION, selection, args, null, null, null);
   }
 
+  Cursor getMessagesMatching(String selection, String[] args) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, selection, args, null, null, DATE_RECEIVED + " DESC");
+  }
+
+  Cursor getMessagesBefore(long messageId, int limit) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " < ?", new String[] {messageId+""},
+                    null, null, ID + " DESC", String.valueOf(limit));
+  }
+
   public Cursor getMessage(long messageId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID_WHERE, new String[] {messageId+""},
@@ -399,10 +513,11 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
 
   public void deleteMessage(long messageId) {
     Log.w("MessageDatabase", "Deleting: " + messageId);
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long threadId     = getThreadIdForMessage(messageId);
+    SQLiteDatabase   db            = databaseHelper.getWritableDatabase();
+    Pair<Long, Long> threadAndDate = getThreadIdAndDateForMessage(messageId);
+    long             threadId      = threadAndDate.first;
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).updateForRemovedMessage(threadId, threadAndDate.second);
     notifyConversationListeners(threadId);
   }
 
@@ -411,17 +526,15 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    String where      = THREAD_ID + " = ? AND (CASE " + TYPE;
-
-    for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-      where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-    }
-
-    where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
+  /**
+   * Deletes a set of messages in one statement, leaving thread summaries to
+   * the caller.
+   */
+  /*package*/ int deleteMessages(List<Long> messageIds) {
+    if (messageIds.isEmpty()) return 0;
 
-    db.delete(TABLE_NAME, where, new String[] {threadId+""});
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    return db.delete(TABLE_NAME, getIdSelection(ID, messageIds), null);
   }
 
   /*package*/ void deleteThreads(Set<Long> threadIds) {
@@ -470,6 +583,14 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
                                      " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
   }
 
+  private static class ThreadSnapshot {
+    int     count;
+    boolean unread;
+    String  body;
+    long    date;
+    long    type;
+  }
+
   public static class Status {
     public static final int STATUS_NONE     = -1;
     public static final int STATUS_COMPLETE  = 0;
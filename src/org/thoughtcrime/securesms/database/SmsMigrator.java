@@ -17,90 +17,67 @@
 package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.Log;
+import android.util.Pair;
 
-import org.whispersystems.textsecure.crypto.MasterCipher;
 import org.whispersystems.textsecure.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.recipients.Recipients;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 
+/**
+ * Copies the system SMS provider into our database.  Rows are handed to an
+ * {@link SmsBatchWriter}, so reading the provider, encrypting bodies and
+ * writing batches overlap.  Thread summaries are rebuilt once, after every
+ * conversation has been copied.
+ */
 public class SmsMigrator {
 
-  private static void addEncryptedStringToStatement(Context context, SQLiteStatement statement,
-                                                    Cursor cursor, MasterSecret masterSecret,
-                                                    int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
+  private static final int    PROGRESS_INTERVAL = 250;
+  private static final String MIGRATED_THREADS  = "migrated_threads";
+  private static final String PARTIAL_THREADS   = "migrated_partial_threads";
 
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, encrypt(masterSecret, cursor.getString(columnIndex)));
-    }
-  }
-
-  private static void addStringToStatement(SQLiteStatement statement, Cursor cursor,
-                                           int index, String key)
-  {
+  private static String getString(Cursor cursor, String key) {
     int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, cursor.getString(columnIndex));
-    }
+    return cursor.isNull(columnIndex) ? null : cursor.getString(columnIndex);
   }
 
-  private static void addIntToStatement(SQLiteStatement statement, Cursor cursor,
-                                        int index, String key)
-  {
+  private static Long getLong(Cursor cursor, String key) {
     int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindLong(index, cursor.getLong(columnIndex));
-    }
+    return cursor.isNull(columnIndex) ? null : cursor.getLong(columnIndex);
   }
 
-  private static void addTranslatedTypeToStatement(SQLiteStatement statement, Cursor cursor,
-                                                   int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
+  private static long getTranslatedType(Cursor cursor) {
+    Long theirType = getLong(cursor, SmsDatabase.TYPE);
 
-    if (cursor.isNull(columnIndex)) {
-      statement.bindLong(index, SmsDatabase.Types.BASE_INBOX_TYPE | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
-    } else {
-      long theirType = cursor.getLong(columnIndex);
-      statement.bindLong(index, SmsDatabase.Types.translateFromSystemBaseType(theirType) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
-    }
+    if (theirType == null) return SmsDatabase.Types.BASE_INBOX_TYPE;
+    else                   return SmsDatabase.Types.translateFromSystemBaseType(theirType);
   }
 
-  private static void getContentValuesForRow(Context context, MasterSecret masterSecret,
-                                             Cursor cursor, long threadId,
-                                             SQLiteStatement statement)
-  {
-    addStringToStatement(statement, cursor, 1, SmsDatabase.ADDRESS);
-    addIntToStatement(statement, cursor, 2, SmsDatabase.PERSON);
-    addIntToStatement(statement, cursor, 3, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 4, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 5, SmsDatabase.PROTOCOL);
-    addIntToStatement(statement, cursor, 6, SmsDatabase.READ);
-    addIntToStatement(statement, cursor, 7, SmsDatabase.STATUS);
-    addTranslatedTypeToStatement(statement, cursor, 8, SmsDatabase.TYPE);
-    addIntToStatement(statement, cursor, 9, SmsDatabase.REPLY_PATH_PRESENT);
-    addStringToStatement(statement, cursor, 10, SmsDatabase.SUBJECT);
-    addEncryptedStringToStatement(context, statement, cursor, masterSecret, 11, SmsDatabase.BODY);
-    addStringToStatement(statement, cursor, 12, SmsDatabase.SERVICE_CENTER);
-
-    statement.bindLong(13, threadId);
+  private static SmsBatchWriter.Row getRow(Cursor cursor, long threadId) {
+    return new SmsBatchWriter.Row(getString(cursor, SmsDatabase.ADDRESS),
+                                  getLong(cursor, SmsDatabase.PERSON),
+                                  getLong(cursor, SmsDatabase.DATE_RECEIVED),
+                                  getLong(cursor, SmsDatabase.PROTOCOL),
+                                  getLong(cursor, SmsDatabase.READ),
+                                  getLong(cursor, SmsDatabase.STATUS),
+                                  getTranslatedType(cursor),
+                                  getLong(cursor, SmsDatabase.REPLY_PATH_PRESENT),
+                                  getString(cursor, SmsDatabase.SUBJECT),
+                                  getString(cursor, SmsDatabase.BODY),
+                                  getString(cursor, SmsDatabase.SERVICE_CENTER),
+                                  threadId);
   }
 
   private static String getTheirCanonicalAddress(Context context, String theirRecipientId) {
@@ -150,37 +127,31 @@ public class SmsMigrator {
     }
   }
 
-  private static String encrypt(MasterSecret masterSecret, String body)
+  private static int migrateConversation(Context context, SmsBatchWriter writer,
+                                         SmsMigrationProgressListener listener,
+                                         ProgressDescription progress,
+                                         long theirThreadId, long ourThreadId, int skip)
   {
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
-    return masterCipher.encryptBody(body);
-  }
-
-  private static void migrateConversation(Context context, MasterSecret masterSecret,
-                                          SmsMigrationProgressListener listener,
-                                          ProgressDescription progress,
-                                          long theirThreadId, long ourThreadId)
-  {
-    SmsDatabase ourSmsDatabase = DatabaseFactory.getSmsDatabase(context);
-    Cursor cursor              = null;
+    Cursor cursor = null;
+    int    added  = 0;
 
     try {
-      Uri uri                    = Uri.parse("content://sms/conversations/" + theirThreadId);
-      cursor                     = context.getContentResolver().query(uri, null, null, null, null);
-      SQLiteDatabase transaction = ourSmsDatabase.beginTransaction();
-      SQLiteStatement statement  = ourSmsDatabase.createInsertStatement(transaction);
+      Uri uri = Uri.parse("content://sms/conversations/" + theirThreadId);
+      cursor  = context.getContentResolver().query(uri, null, null, null, "date ASC");
+
+      if (cursor != null && skip > 0)
+        cursor.moveToPosition(skip - 1);
 
       while (cursor != null && cursor.moveToNext()) {
-        getContentValuesForRow(context, masterSecret, cursor, ourThreadId, statement);
-        statement.execute();
+        writer.add(getRow(cursor, ourThreadId));
+        added++;
 
-        listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
+        if ((cursor.getPosition() + 1) % PROGRESS_INTERVAL == 0 || cursor.isLast()) {
+          listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
+        }
       }
 
-      ourSmsDatabase.endTransaction(transaction);
-      DatabaseFactory.getThreadDatabase(context).update(ourThreadId);
-      DatabaseFactory.getThreadDatabase(context).notifyConversationListeners(ourThreadId);
-
+      return added;
     } finally {
       if (cursor != null)
         cursor.close();
@@ -194,8 +165,12 @@ public class SmsMigrator {
 //    if (context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).getBoolean("migrated", false))
 //      return;
 
-    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
-    Cursor cursor                 = null;
+    ThreadDatabase                    threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    SmsBatchWriter                    writer         = new SmsBatchWriter(context, masterSecret);
+    MigrationState                    state          = new MigrationState(context);
+    Map<Long, Pair<Integer, Integer>> pending        = new LinkedHashMap<Long, Pair<Integer, Integer>>();
+    Cursor                            cursor         = null;
+    int                               added          = 0;
 
     try {
       Uri threadListUri = Uri.parse("content://mms-sms/conversations?simple=true");
@@ -207,23 +182,163 @@ public class SmsMigrator {
         Recipients ourRecipients     = getOurRecipients(context, theirRecipients);
         ProgressDescription progress = new ProgressDescription(cursor.getCount(), cursor.getPosition(), 100, 0);
 
-        if (ourRecipients != null) {
+        if (ourRecipients != null && !state.isMigrated(theirThreadId)) {
           long ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
-          migrateConversation(context, masterSecret,
-                              listener, progress,
-                              theirThreadId, ourThreadId);
+          int  start       = added;
+
+          // Until the whole conversation has been read, its end isn't known.
+          pending.put(theirThreadId, new Pair<Integer, Integer>(start, Integer.MAX_VALUE));
+
+          added += migrateConversation(context, writer,
+                                       listener, progress,
+                                       theirThreadId, ourThreadId,
+                                       state.getCommittedRows(theirThreadId));
+
+          pending.put(theirThreadId, new Pair<Integer, Integer>(start, added));
+          state.update(pending, writer.getWrittenCount());
         }
 
         progress.incrementPrimaryComplete();
         listener.progressUpdate(progress);
       }
+
+      writer.finish();
     } finally {
+      writer.close();
+
       if (cursor != null)
         cursor.close();
+
+      state.update(pending, writer.getWrittenCount());
+      updateThreads(context, masterSecret, threadDatabase, writer.getWrittenThreads());
     }
 
     context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).edit()
-      .putBoolean("migrated", true).commit();
+      .putBoolean("migrated", true).remove(MIGRATED_THREADS).remove(PARTIAL_THREADS).commit();
+  }
+
+  /**
+   * Rebuilds the threads that committed batches wrote to, and restarts the
+   * search backfill over them.  A migration that fails partway keeps the
+   * batches it already wrote, so this runs either way.
+   */
+  private static void updateThreads(Context context, MasterSecret masterSecret,
+                                    ThreadDatabase threads, Set<Long> modifiedThreads)
+  {
+    if (modifiedThreads.isEmpty()) return;
+
+    for (long threadId : modifiedThreads) {
+      threads.update(threadId);
+    }
+
+    threads.notifyConversationListeners(modifiedThreads);
+    threads.notifyConversationListListeners();
+    SearchIndexer.reschedule(context, masterSecret);
+  }
+
+  /**
+   * Which provider threads have been committed, so that a migration retried
+   * after a failure doesn't copy anything twice.  Batches commit in the order
+   * rows were added, so a partly written thread's committed rows are always a
+   * prefix of its provider cursor, and a retry skips just that prefix.
+   */
+  private static class MigrationState {
+    private final Context            context;
+    private final Set<Long>          migrated;
+    private final Map<Long, Integer> resumed;
+
+    private String savedPartial;
+
+    public MigrationState(Context context) {
+      SharedPreferences preferences = context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE);
+
+      this.context      = context;
+      this.migrated     = new HashSet<Long>();
+      this.resumed      = new HashMap<Long, Integer>();
+      this.savedPartial = preferences.getString(PARTIAL_THREADS, "");
+
+      for (String threadId : preferences.getString(MIGRATED_THREADS, "").split(",")) {
+        if (threadId.length() > 0) migrated.add(Long.parseLong(threadId));
+      }
+
+      for (String partial : savedPartial.split(",")) {
+        if (partial.length() == 0) continue;
+
+        String[] fields = partial.split(":");
+        resumed.put(Long.parseLong(fields[0]), Integer.parseInt(fields[1]));
+      }
+    }
+
+    public boolean isMigrated(long theirThreadId) {
+      return migrated.contains(theirThreadId);
+    }
+
+    /**
+     * @return how many of a thread's rows, in provider order, an earlier run
+     *         already committed.
+     */
+    public int getCommittedRows(long theirThreadId) {
+      Integer rows = resumed.get(theirThreadId);
+      return rows == null ? 0 : rows;
+    }
+
+    /**
+     * @param pending provider threads that have been read this run, mapped to
+     *                the range of rows added for them this run.
+     * @param written the number of rows committed this run.
+     */
+    public void update(Map<Long, Pair<Integer, Integer>> pending, int written) {
+      Map<Long, Integer> partial = new LinkedHashMap<Long, Integer>(resumed);
+      boolean            changed = false;
+
+      Iterator<Map.Entry<Long, Pair<Integer, Integer>>> iterator = pending.entrySet().iterator();
+
+      while (iterator.hasNext()) {
+        Map.Entry<Long, Pair<Integer, Integer>> entry = iterator.next();
+        Pair<Integer, Integer>                  rows  = entry.getValue();
+
+        if (rows.second > written) {
+          if (rows.first < written) {
+            partial.put(entry.getKey(), getCommittedRows(entry.getKey()) + written - rows.first);
+          }
+
+          break;
+        }
+
+        migrated.add(entry.getKey());
+        iterator.remove();
+        changed = true;
+      }
+
+      partial.keySet().removeAll(migrated);
+
+      StringBuilder partialString = new StringBuilder();
+
+      for (Map.Entry<Long, Integer> entry : partial.entrySet()) {
+        if (partialString.length() > 0) partialString.append(',');
+        partialString.append(entry.getKey()).append(':').append(entry.getValue());
+      }
+
+      if (changed || !partialString.toString().equals(savedPartial)) {
+        save(partialString.toString());
+      }
+    }
+
+    private void save(String partial) {
+      StringBuilder threadIds = new StringBuilder();
+
+      for (long threadId : migrated) {
+        if (threadIds.length() > 0) threadIds.append(',');
+        threadIds.append(threadId);
+      }
+
+      context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).edit()
+        .putString(MIGRATED_THREADS, threadIds.toString())
+        .putString(PARTIAL_THREADS, partial)
+        .commit();
+
+      savedPartial = partial;
+    }
   }
 
   public interface SmsMigrationProgressListener {
@@ -64,6 +64,8 @@ public class ThreadDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
   };
 
+  private static final int TRIM_BATCH_SIZE = 500;
+
   public ThreadDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -127,6 +129,17 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  private void updateThreadSnippet(long threadId, String body, long date, long type) {
+    ContentValues contentValues = new ContentValues(3);
+    contentValues.put(DATE, date - date % 1000);
+    contentValues.put(SNIPPET, body);
+    contentValues.put(SNIPPET_TYPE, type);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
   private void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, ID_WHERE, new String[] {threadId+""});
@@ -157,6 +170,9 @@ public class ThreadDatabase extends Database {
     Cursor cursor   = null;
     int threadCount = 0;
     int complete    = 0;
+    int trimmed     = 0;
+    int deleted     = 0;
+    long startTime  = System.currentTimeMillis();
 
     try {
       cursor = this.getConversationList();
@@ -165,8 +181,13 @@ public class ThreadDatabase extends Database {
         threadCount = cursor.getCount();
 
       while (cursor != null && cursor.moveToNext()) {
-        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
+        long threadId     = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+        int threadDeleted = trimThread(threadId, length);
+
+        if (threadDeleted > 0) {
+          trimmed++;
+          deleted += threadDeleted;
+        }
 
         listener.onProgress(++complete, threadCount);
       }
@@ -174,33 +195,73 @@ public class ThreadDatabase extends Database {
       if (cursor != null)
         cursor.close();
     }
+
+    Log.w("ThreadDatabase", "Trimmed " + deleted + " messages from " + trimmed + " of " + threadCount +
+                            " threads in " + (System.currentTimeMillis() - startTime) + "ms");
   }
 
-  public void trimThread(long threadId, int length) {
-    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
+  /**
+   * Deletes all but the newest <code>length</code> messages in a thread.  The
+   * deletion runs in batches that each commit on their own, so other writers
+   * aren't locked out for the length of a big trim, and an interrupted trim
+   * simply picks up where it left off the next time it's run.
+   *
+   * @return the number of messages deleted.
+   */
+  public int trimThread(long threadId, int length) {
+    long cutoff = DatabaseFactory.getMmsSmsDatabase(context).getTrimCutoff(threadId, length);
+
+    if (cutoff == -1)
+      return 0;
+
+    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length + ", cut off date: " + cutoff);
+
+    long startTime = System.currentTimeMillis();
+    int deleted    = 0;
+    int batch;
+
+    do {
+      batch    = trimBatch(threadId, cutoff);
+      deleted += batch;
+    } while (batch > 0);
+
+    if (deleted > 0) {
+      update(threadId);
+      notifyConversationListeners(threadId);
+
+      Log.w("ThreadDatabase", "Trimmed " + deleted + " messages from thread: " + threadId +
+                              " in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
 
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    return deleted;
+  }
 
-      if (cursor != null && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(cursor.getCount() - length);
+  private int trimBatch(long threadId, long cutoff) {
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    SQLiteDatabase db             = databaseHelper.getWritableDatabase();
+    List<String> partFiles;
+    int deleted;
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    db.beginTransaction();
 
-        Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+    try {
+      List<Long> smsIds = mmsSmsDatabase.getMessageIdsBefore(MmsSmsDatabase.SMS_TRANSPORT, threadId,
+                                                             cutoff, TRIM_BATCH_SIZE);
+      List<Long> mmsIds = mmsSmsDatabase.getMessageIdsBefore(MmsSmsDatabase.MMS_TRANSPORT, threadId,
+                                                             cutoff, TRIM_BATCH_SIZE);
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+      DatabaseFactory.getSmsDatabase(context).deleteMessages(smsIds);
+      partFiles = DatabaseFactory.getMmsDatabase(context).deleteMessages(mmsIds);
+      deleted   = smsIds.size() + mmsIds.size();
 
-        update(threadId);
-        notifyConversationListeners(threadId);
-      }
+      db.setTransactionSuccessful();
     } finally {
-      if (cursor != null)
-        cursor.close();
+      db.endTransaction();
     }
+
+    PartDatabase.deletePartFiles(partFiles);
+
+    return deleted;
   }
 
   public void setAllThreadsRead() {
@@ -366,6 +427,11 @@ public class ThreadDatabase extends Database {
     return null;
   }
 
+  /**
+   * Rebuilds a thread's summary by recounting and re-reading its messages.
+   * Single inserts and deletes keep the summary current incrementally, so this
+   * is only needed to repair it after bulk changes.
+   */
   public void update(long threadId) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
@@ -395,6 +461,110 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Re-reads the latest message in a thread for its snippet, leaving the
+   * message count alone.
+   */
+  public void updateSnippet(long threadId) {
+    MmsSmsDatabase        mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    MmsSmsDatabase.Reader reader         = null;
+
+    try {
+      reader               = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
+      MessageRecord record = null;
+
+      if (reader != null && (record = reader.getNext()) != null) {
+        updateThreadSnippet(threadId, record.getBody().getBody(), record.getDateReceived(), record.getType());
+      } else {
+        deleteThread(threadId);
+      }
+    } finally {
+      if (reader != null)
+        reader.close();
+    }
+  }
+
+  public void updateForNewMessage(long threadId, String snippet, long date,
+                                  long snippetType, boolean unread)
+  {
+    updateForNewMessages(threadId, 1, snippet, date, snippetType, unread);
+    notifyConversationListListeners();
+  }
+
+  /**
+   * For a message whose snippet isn't at hand: counts it, and re-reads only
+   * the latest message for the snippet.
+   */
+  public void updateForNewMessage(long threadId) {
+    updateForHiddenMessage(threadId);
+    updateSnippet(threadId);
+  }
+
+  /**
+   * Counts a message that isn't ready to show in the thread's snippet yet,
+   * such as an MMS notification whose download hasn't completed.
+   */
+  public void updateForHiddenMessage(long threadId) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1" +
+               " WHERE " + ID + " = ?", new Object[] {threadId});
+  }
+
+  /**
+   * Folds newly appended messages into a thread's summary without re-reading the
+   * conversation.  The snippet only moves forward, so a message that arrives out
+   * of order doesn't replace a newer one.  The caller is responsible for notifying
+   * listeners once its transaction has committed.
+   */
+  public void updateForNewMessages(long threadId, int newCount, String snippet,
+                                   long date, long snippetType, boolean unread)
+  {
+    long           truncatedDate = date - date % 1000;
+    SQLiteDatabase db            = databaseHelper.getWritableDatabase();
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + ?, " +
+               SNIPPET + " = CASE WHEN " + DATE + " <= ? THEN ? ELSE " + SNIPPET + " END, " +
+               SNIPPET_TYPE + " = CASE WHEN " + DATE + " <= ? THEN ? ELSE " + SNIPPET_TYPE + " END, " +
+               DATE + " = MAX(" + DATE + ", ?)" +
+               (unread ? ", " + READ + " = 0" : "") + " WHERE " + ID + " = ?",
+               new Object[] {newCount, truncatedDate, snippet, truncatedDate, snippetType,
+                             truncatedDate, threadId});
+  }
+
+  /**
+   * Removes a deleted message from a thread's summary.  The snippet is only
+   * re-read if the deleted message may have been the one it showed.
+   *
+   * @param dateReceived the deleted message's date received, in milliseconds.
+   */
+  public void updateForRemovedMessage(long threadId, long dateReceived) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1" +
+               " WHERE " + ID + " = ?", new Object[] {threadId});
+
+    Cursor cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT, DATE}, ID_WHERE,
+                        new String[] {threadId + ""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) {
+        return;
+      }
+
+      long count = cursor.getLong(0);
+      long date  = cursor.getLong(1);
+
+      if      (count <= 0)                                 update(threadId);
+      else if (dateReceived - dateReceived % 1000 >= date) updateSnippet(threadId);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    notifyConversationListListeners();
+  }
+
   public static interface ProgressListener {
     public void onProgress(int complete, int total);
   }
@@ -179,6 +179,7 @@ public class XmlBackup {
     public void close() throws IOException {
       this.serializer.endTag("", "smses");
       this.serializer.endDocument();
+      this.writer.close();
     }
   }
 }
@@ -3,14 +3,28 @@ package org.thoughtcrime.securesms.database.loaders;
 import android.content.Context;
 import android.database.Cursor;
 import android.support.v4.content.CursorLoader;
+import android.util.Pair;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 
+/**
+ * Loads the newest page of a conversation, and grows the window back one
+ * page at a time as older messages are asked for.  Reloads on content
+ * changes keep the window's oldest message, so new messages don't push
+ * anything out of it.
+ */
 public class ConversationLoader extends CursorLoader {
 
+  private static final int PAGE_SIZE = 100;
+
   private final Context context;
   private final long threadId;
 
+  private Pair<Long, Long> boundary;
+  private boolean          loadedAll;
+  private boolean          olderRequested;
+
   public ConversationLoader(Context context, long threadId) {
     super(context);
     this.context  = context.getApplicationContext();
@@ -19,6 +33,33 @@ public class ConversationLoader extends CursorLoader {
 
   @Override
   public Cursor loadInBackground() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+    synchronized (this) {
+      if (!loadedAll && (boundary == null || olderRequested)) {
+        boundary       = database.getConversationBoundary(threadId, boundary, PAGE_SIZE);
+        loadedAll      = boundary == null;
+        olderRequested = false;
+      }
+
+      return database.getConversation(threadId, loadedAll ? null : boundary);
+    }
+  }
+
+  public synchronized boolean hasOlder() {
+    return !loadedAll;
+  }
+
+  /**
+   * @return true if a load of the previous page was started.
+   */
+  public boolean loadOlder() {
+    synchronized (this) {
+      if (loadedAll || olderRequested) return false;
+      olderRequested = true;
+    }
+
+    onContentChanged();
+    return true;
   }
 }
@@ -57,6 +57,7 @@ import org.whispersystems.textsecure.push.IncomingPushMessage;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Handles posting system notifications for new messages.
@@ -123,6 +124,25 @@ public class MessageNotifier {
     }
   }
 
+  public static void updateNotification(Context context, MasterSecret masterSecret, Set<Long> threadIds) {
+    if (!TextSecurePreferences.isNotificationsEnabled(context) || threadIds.isEmpty()) {
+      return;
+    }
+
+    long    visible         = visibleThread;
+    boolean containsVisible = threadIds.contains(visible);
+
+    if (containsVisible) {
+      DatabaseFactory.getThreadDatabase(context).setRead(visible);
+    }
+
+    if (threadIds.size() > (containsVisible ? 1 : 0)) {
+      updateNotification(context, masterSecret, true);
+    } else {
+      sendInThreadNotification(context);
+    }
+  }
+
   private static void updateNotification(Context context, MasterSecret masterSecret, boolean signal) {
     Cursor telcoCursor = null;
     Cursor pushCursor  = null;
@@ -334,7 +354,7 @@ public class MessageNotifier {
     MmsSmsDatabase.Reader reader;
 
     if (masterSecret == null) reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
-    else                      reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
+    else                      reader = DatabaseFactory.getMmsSmsDatabase(context).bulkReaderFor(cursor, masterSecret);
 
     while ((record = reader.getNext()) != null) {
       Recipient       recipient        = record.getIndividualRecipient();
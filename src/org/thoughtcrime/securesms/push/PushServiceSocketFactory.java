@@ -8,8 +8,10 @@ import org.whispersystems.textsecure.push.PushServiceSocket;
 
 public class PushServiceSocketFactory {
 
+  private static TextSecurePushTrustStore trustStore;
+
   public static PushServiceSocket create(Context context, String number, String password) {
-    return new PushServiceSocket(context, Release.PUSH_URL, new TextSecurePushTrustStore(context),
+    return new PushServiceSocket(context, Release.PUSH_URL, getTrustStore(context),
                                  number, password);
   }
 
@@ -19,4 +21,12 @@ public class PushServiceSocketFactory {
                   TextSecurePreferences.getPushServerPassword(context));
   }
 
+  private static synchronized TextSecurePushTrustStore getTrustStore(Context context) {
+    if (trustStore == null) {
+      trustStore = new TextSecurePushTrustStore(context);
+    }
+
+    return trustStore;
+  }
+
 }
@@ -39,8 +39,11 @@ import org.thoughtcrime.securesms.RoutingActivity;
 import org.thoughtcrime.securesms.crypto.DecryptingQueue;
 import org.thoughtcrime.securesms.crypto.InvalidPassphraseException;
 import org.whispersystems.textsecure.crypto.MasterSecret;
+import org.whispersystems.textsecure.storage.SessionRecordV2;
 import org.thoughtcrime.securesms.crypto.MasterSecretUtil;
+import org.thoughtcrime.securesms.database.SearchIndexer;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
+import org.thoughtcrime.securesms.transport.AttachmentPointerCache;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 /**
@@ -87,6 +90,7 @@ public class KeyCachingService extends Service {
         if (!DatabaseUpgradeActivity.isUpdate(KeyCachingService.this)) {
           DecryptingQueue.schedulePendingDecrypts(KeyCachingService.this, masterSecret);
           MessageNotifier.updateNotification(KeyCachingService.this, masterSecret);
+          SearchIndexer.schedule(KeyCachingService.this, masterSecret);
         }
         return null;
       }
@@ -162,6 +166,7 @@ public class KeyCachingService extends Service {
 
   private void handleClearKey() {
     this.masterSecret = null;
+    SearchIndexer.cancel();
     stopForeground(true);
 
     Intent intent = new Intent(CLEAR_KEY_EVENT);
@@ -172,6 +177,8 @@ public class KeyCachingService extends Service {
     new AsyncTask<Void, Void, Void>() {
       @Override
       protected Void doInBackground(Void... params) {
+        SessionRecordV2.clearCache();
+        AttachmentPointerCache.clear();
         MessageNotifier.updateNotification(KeyCachingService.this, null);
         return null;
       }
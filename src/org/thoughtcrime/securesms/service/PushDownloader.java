@@ -12,17 +12,18 @@ import org.thoughtcrime.securesms.database.EncryptingPartDatabase;
 import org.thoughtcrime.securesms.database.PartDatabase;
 import org.thoughtcrime.securesms.push.PushServiceSocketFactory;
 import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.textsecure.crypto.AttachmentCipherInputStream;
 import org.whispersystems.textsecure.crypto.InvalidMessageException;
 import org.whispersystems.textsecure.crypto.MasterCipher;
 import org.whispersystems.textsecure.crypto.MasterSecret;
 import org.whispersystems.textsecure.push.NotFoundException;
 import org.whispersystems.textsecure.push.PushServiceSocket;
+import org.whispersystems.textsecure.push.PushServiceSocket.ProgressListener;
 import org.whispersystems.textsecure.util.Base64;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 import ws.com.google.android.mms.MmsException;
@@ -63,8 +64,8 @@ public class PushDownloader {
   }
 
   private void retrievePart(MasterSecret masterSecret, PduPart part, long messageId, long partId) {
-    EncryptingPartDatabase database       = DatabaseFactory.getEncryptingPartDatabase(context, masterSecret);
-    File                   attachmentFile = null;
+    EncryptingPartDatabase   database = DatabaseFactory.getEncryptingPartDatabase(context, masterSecret);
+    Pair<File, OutputStream> partFile = null;
 
     try {
       MasterCipher masterCipher    = new MasterCipher(masterSecret);
@@ -76,10 +77,15 @@ public class PushDownloader {
         relay = Util.toIsoString(part.getName());
       }
 
-      attachmentFile              = downloadAttachment(relay, contentLocation);
-      InputStream attachmentInput = new AttachmentCipherInputStream(attachmentFile, key);
+      partFile = database.createPartFile(part);
 
-      database.updateDownloadedPart(messageId, partId, part, attachmentInput);
+      OutputStream partOutput = new BufferedOutputStream(partFile.second, 8192);
+
+      retrieveAttachment(relay, contentLocation, key, partOutput, partId);
+      partOutput.close();
+
+      database.updateDownloadedPart(messageId, partId, part, partFile.first);
+      partFile = null;
     } catch (NotFoundException e) {
       Log.w("PushDownloader", e);
       try {
@@ -105,14 +111,44 @@ public class PushDownloader {
       Log.w("PushDownloader", e);
       /// XXX schedule some kind of soft failure retry action
     } finally {
-      if (attachmentFile != null)
-        attachmentFile.delete();
+      if (partFile != null) {
+        discardPartFile(partFile);
+      }
     }
   }
 
-  private File downloadAttachment(String relay, long contentLocation) throws IOException {
+  private void retrieveAttachment(String relay, long contentLocation, byte[] key,
+                                  OutputStream destination, final long partId)
+      throws IOException, InvalidMessageException
+  {
     PushServiceSocket socket = PushServiceSocketFactory.create(context);
-    return socket.retrieveAttachment(relay, contentLocation);
+
+    socket.retrieveAttachment(relay, contentLocation, key, destination, new ProgressListener() {
+      private int lastReported = 0;
+
+      @Override
+      public void onProgress(long transferred, long total) {
+        if (total <= 0) return;
+
+        int percent = (int)(transferred * 100 / total);
+
+        if (percent >= lastReported + 25) {
+          lastReported = percent;
+          Log.w("PushDownloader", "Part " + partId + ": " + percent + "% downloaded");
+        }
+      }
+    });
   }
 
+  private void discardPartFile(Pair<File, OutputStream> partFile) {
+    try {
+      partFile.second.close();
+    } catch (IOException e) {
+      Log.w("PushDownloader", e);
+    }
+
+    if (!partFile.first.delete()) {
+      Log.w("PushDownloader", "Failed to delete partial part: " + partFile.first.getAbsolutePath());
+    }
+  }
 }
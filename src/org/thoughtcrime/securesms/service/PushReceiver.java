@@ -38,6 +38,11 @@ import org.whispersystems.textsecure.storage.RecipientDevice;
 import org.whispersystems.textsecure.storage.Session;
 import org.whispersystems.textsecure.util.Base64;
 
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
 import ws.com.google.android.mms.MmsException;
 
 import static org.whispersystems.textsecure.push.PushMessageProtos.PushMessageContent.GroupContext.Type;
@@ -48,9 +53,15 @@ public class PushReceiver {
   public static final int RESULT_NO_SESSION     = 1;
   public static final int RESULT_DECRYPT_FAILED = 2;
 
+  private static final int MAX_PENDING_MESSAGES = 50;
+
   private final Context       context;
   private final GroupReceiver groupReceiver;
 
+  private final List<IncomingTextMessage> pendingMessages = new LinkedList<IncomingTextMessage>();
+  private final List<Long>                pendingPushIds  = new LinkedList<Long>();
+  private       MasterSecret              pendingMasterSecret;
+
   public PushReceiver(Context context) {
     this.context       = context.getApplicationContext();
     this.groupReceiver = new GroupReceiver(context);
@@ -64,16 +75,52 @@ public class PushReceiver {
     }
   }
 
+  /**
+   * Writes out the text messages held back for a batched insert, and raises a
+   * single notification for all of them.  Must be called once the caller has
+   * no more received messages immediately queued up behind the current one.
+   */
+  public void flushPendingMessages() {
+    if (pendingMessages.isEmpty()) {
+      return;
+    }
+
+    List<Pair<Long, Long>> messageAndThreadIds = DatabaseFactory.getEncryptingSmsDatabase(context)
+                                                                .insertMessagesInbox(pendingMasterSecret,
+                                                                                     pendingMessages);
+    Set<Long> threadIds = new HashSet<Long>();
+
+    for (Pair<Long, Long> messageAndThreadId : messageAndThreadIds) {
+      threadIds.add(messageAndThreadId.second);
+    }
+
+    for (long pushId : pendingPushIds) {
+      DatabaseFactory.getPushDatabase(context).delete(pushId);
+    }
+
+    Log.w("PushReceiver", "Inserted " + messageAndThreadIds.size() + " messages into " +
+                          threadIds.size() + " threads.");
+
+    MessageNotifier.updateNotification(context, pendingMasterSecret, threadIds);
+
+    pendingMessages.clear();
+    pendingPushIds.clear();
+    pendingMasterSecret = null;
+  }
+
   private void handleDecrypt(MasterSecret masterSecret, Intent intent) {
     IncomingPushMessage message   = intent.getParcelableExtra("message");
     long                messageId = intent.getLongExtra("message_id", -1);
     int                 result    = intent.getIntExtra("result", 0);
+    boolean             pending   = false;
 
-    if      (result == RESULT_OK)             handleReceivedMessage(masterSecret, message, true);
+    if      (result == RESULT_OK)             pending = handleReceivedMessage(masterSecret, message, true);
     else if (result == RESULT_NO_SESSION)     handleReceivedMessageForNoSession(masterSecret, message);
     else if (result == RESULT_DECRYPT_FAILED) handleReceivedCorruptedMessage(masterSecret, message, true);
 
-    DatabaseFactory.getPushDatabase(context).delete(messageId);
+    // A held-back message keeps its decrypted copy in the push database until it's been written.
+    if (pending) pendingPushIds.add(messageId);
+    else         DatabaseFactory.getPushDatabase(context).delete(messageId);
   }
 
   private void handleMessage(MasterSecret masterSecret, Intent intent) {
@@ -110,6 +157,8 @@ public class PushReceiver {
       return;
     }
 
+    flushPendingMessages();
+
     try {
       Recipient              recipient       = RecipientFactory.getRecipientsFromString(context, message.getSource(), false).getPrimaryRecipient();
       RecipientDevice        recipientDevice = new RecipientDevice(recipient.getRecipientId(), message.getSourceDevice());
@@ -146,30 +195,39 @@ public class PushReceiver {
     }
   }
 
-  private void handleReceivedMessage(MasterSecret masterSecret,
-                                     IncomingPushMessage message,
-                                     boolean secure)
+  /**
+   * @return true if the message was held back for a batched insert.
+   */
+  private boolean handleReceivedMessage(MasterSecret masterSecret,
+                                        IncomingPushMessage message,
+                                        boolean secure)
   {
     try {
       PushMessageContent messageContent = PushMessageContent.parseFrom(message.getBody());
 
       if (secure && (messageContent.getFlags() & PushMessageContent.Flags.END_SESSION_VALUE) != 0) {
         Log.w("PushReceiver", "Received end session message...");
+        flushPendingMessages();
         handleEndSessionMessage(masterSecret, message, messageContent);
       } else if (messageContent.hasGroup() && messageContent.getGroup().getType().getNumber() != Type.DELIVER_VALUE) {
         Log.w("PushReceiver", "Received push group message...");
+        flushPendingMessages();
         groupReceiver.process(masterSecret, message, messageContent, secure);
       } else if (messageContent.getAttachmentsCount() > 0) {
         Log.w("PushReceiver", "Received push media message...");
+        flushPendingMessages();
         handleReceivedMediaMessage(masterSecret, message, messageContent, secure);
       } else {
         Log.w("PushReceiver", "Received push text message...");
         handleReceivedTextMessage(masterSecret, message, messageContent, secure);
+        return true;
       }
     } catch (InvalidProtocolBufferException e) {
       Log.w("PushReceiver", e);
       handleReceivedCorruptedMessage(masterSecret, message, secure);
     }
+
+    return false;
   }
 
   private void handleEndSessionMessage(MasterSecret masterSecret,
@@ -230,25 +288,28 @@ public class PushReceiver {
                                          PushMessageContent messageContent,
                                          boolean secure)
   {
-    EncryptingSmsDatabase database    = DatabaseFactory.getEncryptingSmsDatabase(context);
-    IncomingTextMessage   textMessage = new IncomingTextMessage(message, "",
-                                                                messageContent.hasGroup() ?
-                                                                    messageContent.getGroup() : null);
+    IncomingTextMessage textMessage = new IncomingTextMessage(message, messageContent.getBody(),
+                                                              messageContent.hasGroup() ?
+                                                                  messageContent.getGroup() : null);
 
     if (secure) {
-      textMessage = new IncomingEncryptedMessage(textMessage, "");
+      textMessage = new IncomingEncryptedMessage(textMessage, messageContent.getBody());
     }
 
-    Pair<Long, Long> messageAndThreadId = database.insertMessageInbox(masterSecret, textMessage);
-    database.updateMessageBody(masterSecret, messageAndThreadId.first, messageContent.getBody());
+    if (pendingMessages.size() >= MAX_PENDING_MESSAGES || pendingMasterSecret != masterSecret) {
+      flushPendingMessages();
+    }
 
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    pendingMessages.add(textMessage);
+    pendingMasterSecret = masterSecret;
   }
 
   private void handleReceivedCorruptedMessage(MasterSecret masterSecret,
                                               IncomingPushMessage message,
                                               boolean secure)
   {
+    flushPendingMessages();
+
     Pair<Long, Long> messageAndThreadId = insertMessagePlaceholder(masterSecret, message, secure);
     DatabaseFactory.getEncryptingSmsDatabase(context).markAsDecryptFailed(messageAndThreadId.first);
 
@@ -259,6 +320,8 @@ public class PushReceiver {
                                           IncomingPushMessage message,
                                           boolean invalidVersion)
   {
+    flushPendingMessages();
+
     IncomingTextMessage        corruptedMessage    = new IncomingTextMessage(message, "", null);
     IncomingKeyExchangeMessage corruptedKeyMessage = new IncomingKeyExchangeMessage(corruptedMessage, "");
 
@@ -275,6 +338,8 @@ public class PushReceiver {
   private void handleReceivedMessageForNoSession(MasterSecret masterSecret,
                                                  IncomingPushMessage message)
   {
+    flushPendingMessages();
+
     Pair<Long, Long> messageAndThreadId = insertMessagePlaceholder(masterSecret, message, true);
     DatabaseFactory.getEncryptingSmsDatabase(context).markAsNoSession(messageAndThreadId.first);
     MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
@@ -26,6 +26,7 @@ import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.Process;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -33,7 +34,7 @@ import org.thoughtcrime.securesms.crypto.InvalidPassphraseException;
 import org.thoughtcrime.securesms.crypto.MasterSecretUtil;
 import org.thoughtcrime.securesms.database.CanonicalSessionMigrator;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.thoughtcrime.securesms.util.WorkerThread;
+import org.thoughtcrime.securesms.util.WorkLane;
 import org.whispersystems.textsecure.crypto.MasterSecret;
 
 import java.util.Iterator;
@@ -89,8 +90,11 @@ public class SendReceiveService extends Service {
 
   private NewKeyReceiver newKeyReceiver;
   private ClearKeyReceiver clearKeyReceiver;
-  private List<Runnable> workQueue;
-  private List<Runnable> pendingSecretList;
+  private List<SendReceiveWorkItem> pendingSecretList;
+
+  private WorkLane sendLane;
+  private WorkLane receiveLane;
+  private WorkLane downloadLane;
 
   @Override
   public void onCreate() {
@@ -169,11 +173,10 @@ public class SendReceiveService extends Service {
   }
 
   private void initializeWorkQueue() {
-    pendingSecretList = new LinkedList<Runnable>();
-    workQueue         = new LinkedList<Runnable>();
-
-    Thread workerThread = new WorkerThread(workQueue, "SendReceveService-WorkerThread");
-    workerThread.start();
+    pendingSecretList = new LinkedList<SendReceiveWorkItem>();
+    sendLane          = new WorkLane("SendReceiveService-Send", 1, Process.THREAD_PRIORITY_DEFAULT);
+    receiveLane       = new WorkLane("SendReceiveService-Receive", 1, Process.THREAD_PRIORITY_DEFAULT);
+    downloadLane      = new WorkLane("SendReceiveService-Download", 2, Process.THREAD_PRIORITY_BACKGROUND);
   }
 
   private void initializeMasterSecret() {
@@ -196,15 +199,16 @@ public class SendReceiveService extends Service {
     Log.w("SendReceiveService", "SendReceive service got master secret.");
 
     if (masterSecret != null) {
-      synchronized (workQueue) {
+      synchronized (pendingSecretList) {
         this.masterSecret = masterSecret;
         this.hasSecret    = true;
 
-        Iterator<Runnable> iterator = pendingSecretList.iterator();
-        while (iterator.hasNext())
-          workQueue.add(iterator.next());
+        Iterator<SendReceiveWorkItem> iterator = pendingSecretList.iterator();
 
-        workQueue.notifyAll();
+        while (iterator.hasNext()) {
+          dispatch(iterator.next());
+          iterator.remove();
+        }
       }
     }
   }
@@ -214,44 +218,87 @@ public class SendReceiveService extends Service {
   }
 
   private void scheduleIntent(int what, Intent intent) {
-    Runnable work = new SendReceiveWorkItem(intent, what);
+    SendReceiveWorkItem work = new SendReceiveWorkItem(intent, what);
 
-    synchronized (workQueue) {
-      workQueue.add(work);
-      workQueue.notifyAll();
+    synchronized (pendingSecretList) {
+      dispatch(work);
     }
   }
 
   private void scheduleSecretRequiredIntent(int what, Intent intent) {
-    Runnable work = new SendReceiveWorkItem(intent, what);
+    SendReceiveWorkItem work = new SendReceiveWorkItem(intent, what);
 
-    synchronized (workQueue) {
+    synchronized (pendingSecretList) {
       if (hasSecret) {
-        workQueue.add(work);
-        workQueue.notifyAll();
+        dispatch(work);
       } else {
         pendingSecretList.add(work);
       }
     }
   }
 
+  /**
+   * Hands a work item to its lane, along with the current master secret.
+   * Must be called while holding the pendingSecretList lock.
+   */
+  private void dispatch(SendReceiveWorkItem work) {
+    work.setMasterSecret(masterSecret);
+
+    switch (work.getWhat()) {
+    case SEND_SMS:
+    case SEND_MMS:
+      sendLane.execute(work);
+      break;
+    case RECEIVE_SMS:
+    case RECEIVE_MMS:
+    case RECEIVE_PUSH:
+      receiveLane.execute(work);
+      break;
+    default:
+      downloadLane.execute(work);
+    }
+  }
+
   private class SendReceiveWorkItem implements Runnable {
     private final Intent intent;
     private final int what;
 
+    private MasterSecret masterSecret;
+
     public SendReceiveWorkItem(Intent intent, int what) {
       this.intent = intent;
       this.what   = what;
     }
 
+    public int getWhat() {
+      return what;
+    }
+
+    public void setMasterSecret(MasterSecret masterSecret) {
+      this.masterSecret = masterSecret;
+    }
+
     @Override
     public void run() {
-      MasterSecret masterSecret = SendReceiveService.this.masterSecret;
+      MasterSecret masterSecret = this.masterSecret;
 
       if (masterSecret == null && TextSecurePreferences.isPasswordDisabled(SendReceiveService.this)) {
         masterSecret = getPlaceholderSecret();
       }
 
+      if (what == RECEIVE_PUSH) {
+        pushReceiver.process(masterSecret, intent);
+
+        // Text messages are held back while more received work is queued behind them.
+        if (receiveLane.getQueueDepth() == 0) {
+          pushReceiver.flushPendingMessages();
+        }
+
+        return;
+      } else if (what == RECEIVE_SMS || what == RECEIVE_MMS) {
+        pushReceiver.flushPendingMessages();
+      }
+
       switch (what) {
       case RECEIVE_SMS:	         smsReceiver.process(masterSecret, intent);      return;
       case SEND_SMS:		         smsSender.process(masterSecret, intent);        return;
@@ -259,7 +306,6 @@ public class SendReceiveService extends Service {
       case SEND_MMS:             mmsSender.process(masterSecret, intent);        return;
       case DOWNLOAD_MMS:         mmsDownloader.process(masterSecret, intent);    return;
       case DOWNLOAD_MMS_PENDING: mmsDownloader.process(masterSecret, intent);    return;
-      case RECEIVE_PUSH:         pushReceiver.process(masterSecret, intent);     return;
       case DOWNLOAD_PUSH:        pushDownloader.process(masterSecret, intent);   return;
       case DOWNLOAD_AVATAR:      avatarDownloader.process(masterSecret, intent); return;
       }
@@ -314,18 +360,11 @@ public class SendReceiveService extends Service {
   /**
    * This class receives broadcast notifications to clear the MasterSecret.
    *
-   * We don't want to clear it immediately, since there are potentially jobs
-   * in the work queue which require the master secret.  Instead, we reset a
-   * flag so that new incoming jobs will be evaluated as if no mastersecret is
-   * present.
-   *
-   * Then, we add a job to the end of the queue which actually clears the masterSecret
-   * value.  That way all jobs before this moment will be processed correctly, and all
-   * jobs after this moment will be evaluated as if no mastersecret is present (and potentially
-   * held).
-   *
-   * When we go to actually clear the mastersecret, we ensure that the flag is still false.
-   * This allows a new mastersecret broadcast to come in correctly without us clobbering it.
+   * Jobs which are already queued may still require the master secret, but
+   * each job is handed the master secret when it's dispatched to a lane, so
+   * we can clear our own reference immediately.  All jobs before this moment
+   * will be processed correctly, and all jobs after this moment will be
+   * evaluated as if no mastersecret is present (and potentially held).
    *
    */
   private class ClearKeyReceiver extends BroadcastReceiver {
@@ -333,23 +372,9 @@ public class SendReceiveService extends Service {
     public void onReceive(Context context, Intent intent) {
       Log.w("SendReceiveService", "Got a clear mastersecret broadcast...");
 
-      synchronized (workQueue) {
-        SendReceiveService.this.hasSecret = false;
-        workQueue.add(new Runnable() {
-          @Override
-          public void run() {
-            Log.w("SendReceiveService", "Running clear key work item...");
-
-            synchronized (workQueue) {
-              if (!SendReceiveService.this.hasSecret) {
-                Log.w("SendReceiveService", "Actually clearing key...");
-                SendReceiveService.this.masterSecret = null;
-              }
-            }
-          }
-        });
-
-        workQueue.notifyAll();
+      synchronized (pendingSecretList) {
+        SendReceiveService.this.hasSecret    = false;
+        SendReceiveService.this.masterSecret = null;
       }
     }
   };
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.transport;
+
+import android.os.SystemClock;
+
+import org.thoughtcrime.securesms.util.LRUCache;
+import org.whispersystems.textsecure.push.PushAttachmentPointer;
+import org.whispersystems.textsecure.util.Hex;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Remembers recently uploaded push attachments by content, so that resending
+ * the same bytes (a retried message, or the same media sent to another
+ * thread) points at the existing upload instead of encrypting and uploading
+ * it again.  Entries expire well before the server discards the upload.
+ */
+public class AttachmentPointerCache {
+
+  private static final long TTL_MILLIS  = 30 * 60 * 1000;
+  private static final int  MAX_ENTRIES = 32;
+
+  private static final Map<String, CachedPointer> cache =
+      Collections.synchronizedMap(new LRUCache<String, CachedPointer>(MAX_ENTRIES));
+
+  public static String getKey(String contentType, byte[] data) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return contentType + ":" + data.length + ":" + Hex.toStringCondensed(digest.digest(data));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public static PushAttachmentPointer get(String key) {
+    CachedPointer cached = cache.get(key);
+
+    if (cached == null) {
+      return null;
+    }
+
+    if (SystemClock.elapsedRealtime() - cached.getCreated() > TTL_MILLIS) {
+      cache.remove(key);
+      return null;
+    }
+
+    return cached.getPointer();
+  }
+
+  public static void put(String key, PushAttachmentPointer pointer) {
+    cache.put(key, new CachedPointer(pointer, SystemClock.elapsedRealtime()));
+  }
+
+  public static void clear() {
+    cache.clear();
+  }
+
+  private static class CachedPointer {
+    private final PushAttachmentPointer pointer;
+    private final long                  created;
+
+    public CachedPointer(PushAttachmentPointer pointer, long created) {
+      this.pointer = pointer;
+      this.created = created;
+    }
+
+    public PushAttachmentPointer getPointer() {
+      return pointer;
+    }
+
+    public long getCreated() {
+      return created;
+    }
+  }
+}
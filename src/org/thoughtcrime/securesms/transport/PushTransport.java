@@ -58,9 +58,16 @@ import org.whispersystems.textsecure.storage.SessionRecordV2;
 import org.whispersystems.textsecure.util.Base64;
 import org.whispersystems.textsecure.util.InvalidNumberException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.pdu.PduBody;
@@ -72,6 +79,13 @@ import static org.whispersystems.textsecure.push.PushMessageProtos.PushMessageCo
 
 public class PushTransport extends BaseTransport {
 
+  private static final int FANOUT_THREADS = 4;
+
+  private static final ExecutorService fanoutExecutor = Util.newIdleTimeoutExecutor(FANOUT_THREADS);
+
+  private static final ExecutorService sessionExecutor =
+      Util.newIdleTimeoutExecutor(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
   private final Context      context;
   private final MasterSecret masterSecret;
 
@@ -122,24 +136,59 @@ public class PushTransport extends BaseTransport {
 
     List<UntrustedIdentityException> untrustedIdentities = new LinkedList<UntrustedIdentityException>();
     List<UnregisteredUserException>  unregisteredUsers   = new LinkedList<UnregisteredUserException>();
+    List<MemberDelivery>             deliveries          = new LinkedList<MemberDelivery>();
+    List<Future<?>>                  futures             = new LinkedList<Future<?>>();
 
     for (Recipient recipient : recipients.getRecipientsList()) {
+      MemberDelivery delivery = new MemberDelivery(socket, recipient, threadId, plaintext);
+
+      deliveries.add(delivery);
+      futures.add(fanoutExecutor.submit(delivery));
+    }
+
+    for (Future<?> future : futures) {
       try {
-        deliver(socket, recipient, threadId, plaintext);
-      } catch (UntrustedIdentityException e) {
-        Log.w("PushTransport", e);
-        untrustedIdentities.add(e);
-      } catch (UnregisteredUserException e) {
-        Log.w("PushTransport", e);
-        unregisteredUsers.add(e);
+        future.get();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+        if (e.getCause() instanceof Error)            throw (Error)e.getCause();
+        throw new AssertionError(e);
       }
     }
 
+    List<Long> latencies = new ArrayList<Long>(deliveries.size());
+
+    for (MemberDelivery delivery : deliveries) {
+      Throwable failure = delivery.getFailure();
+
+      if      (failure == null)                               latencies.add(delivery.getLatency());
+      else if (failure instanceof UntrustedIdentityException) untrustedIdentities.add((UntrustedIdentityException)failure);
+      else if (failure instanceof UnregisteredUserException)  unregisteredUsers.add((UnregisteredUserException)failure);
+      else if (failure instanceof IOException)                throw (IOException)failure;
+      else if (failure instanceof InvalidNumberException)     throw (InvalidNumberException)failure;
+      else                                                    throw new AssertionError(failure);
+    }
+
+    logLatencies(latencies);
+
     if (!untrustedIdentities.isEmpty() || !unregisteredUsers.isEmpty()) {
       throw new EncapsulatedExceptions(untrustedIdentities, unregisteredUsers);
     }
   }
 
+  private void logLatencies(List<Long> latencies) {
+    if (latencies.size() < 2) return;
+
+    Collections.sort(latencies);
+
+    Log.w("PushTransport", "Delivered to " + latencies.size() + " members, latency" +
+                           " p50: " + latencies.get(latencies.size() / 2) + "ms" +
+                           " p90: " + latencies.get(latencies.size() * 9 / 10) + "ms" +
+                           " max: " + latencies.get(latencies.size() - 1) + "ms");
+  }
+
   private void deliver(PushServiceSocket socket, Recipient recipient, long threadId, byte[] plaintext)
       throws IOException, InvalidNumberException, UntrustedIdentityException
   {
@@ -182,13 +231,23 @@ public class PushTransport extends BaseTransport {
                                                          String contentType, byte[] data)
       throws IOException
   {
-    AttachmentCipher   cipher               = new AttachmentCipher();
-    byte[]             key                  = cipher.getCombinedKeyMaterial();
-    byte[]             ciphertextAttachment = cipher.encrypt(data);
-    PushAttachmentData attachmentData       = new PushAttachmentData(contentType, ciphertextAttachment);
-    long               attachmentId         = socket.sendAttachment(attachmentData);
+    String                cacheKey = AttachmentPointerCache.getKey(contentType, data);
+    PushAttachmentPointer cached   = AttachmentPointerCache.get(cacheKey);
+
+    if (cached != null) {
+      Log.w("PushTransport", "Reusing uploaded attachment: " + cached.getId());
+      return cached;
+    }
+
+    byte[]             key            = new AttachmentCipher().getCombinedKeyMaterial();
+    PushAttachmentData attachmentData = new PushAttachmentData(contentType, new ByteArrayInputStream(data),
+                                                               data.length, key);
+    long               attachmentId   = socket.sendAttachment(attachmentData);
 
-    return new PushAttachmentPointer(contentType, attachmentId, key);
+    PushAttachmentPointer pointer = new PushAttachmentPointer(contentType, attachmentId, key);
+    AttachmentPointerCache.put(cacheKey, pointer);
+
+    return pointer;
   }
 
   private void handleMismatchedDevices(PushServiceSocket socket, long threadId,
@@ -196,28 +255,70 @@ public class PushTransport extends BaseTransport {
                                        MismatchedDevices mismatchedDevices)
       throws InvalidNumberException, IOException, UntrustedIdentityException
   {
-    try {
-      String e164number = Util.canonicalizeNumber(context, recipient.getNumber());
-      long   recipientId = recipient.getRecipientId();
+    String            e164number     = Util.canonicalizeNumber(context, recipient.getNumber());
+    long              recipientId    = recipient.getRecipientId();
+    List<PushAddress> missingDevices = new LinkedList<PushAddress>();
 
-      for (int extraDeviceId : mismatchedDevices.getExtraDevices()) {
-        PushAddress address = PushAddress.create(context, recipientId, e164number, extraDeviceId);
-        SessionRecordV2.delete(context, address);
+    for (int extraDeviceId : mismatchedDevices.getExtraDevices()) {
+      PushAddress address = PushAddress.create(context, recipientId, e164number, extraDeviceId);
+      SessionRecordV2.delete(context, address);
+    }
+
+    for (int missingDeviceId : mismatchedDevices.getMissingDevices()) {
+      missingDevices.add(PushAddress.create(context, recipientId, e164number, missingDeviceId));
+    }
+
+    if (!missingDevices.isEmpty()) {
+      processPreKeys(threadId, e164number, missingDevices, socket.getPreKeys(missingDevices));
+    }
+  }
+
+  /**
+   * Builds a session for each device from its prekey.  Every identity is
+   * checked before any session is touched, then the sessions, which each
+   * need their own key agreements, are built in parallel.
+   */
+  private void processPreKeys(final long threadId, String e164number,
+                              List<PushAddress> devices, final List<PreKeyEntity> preKeys)
+      throws IOException, UntrustedIdentityException
+  {
+    List<KeyExchangeProcessorV2> processors = new ArrayList<KeyExchangeProcessorV2>(devices.size());
+
+    for (int i=0;i<devices.size();i++) {
+      KeyExchangeProcessorV2 processor = new KeyExchangeProcessorV2(context, masterSecret, devices.get(i));
+
+      if (!processor.isTrusted(preKeys.get(i))) {
+        throw new UntrustedIdentityException("Untrusted identity key!", e164number, preKeys.get(i).getIdentityKey());
       }
 
-      for (int missingDeviceId : mismatchedDevices.getMissingDevices()) {
-        PushAddress            address   = PushAddress.create(context, recipientId, e164number, missingDeviceId);
-        PreKeyEntity           preKey    = socket.getPreKey(address);
-        KeyExchangeProcessorV2 processor = new KeyExchangeProcessorV2(context, masterSecret, address);
+      processors.add(processor);
+    }
+
+    List<Future<Void>> futures = new LinkedList<Future<Void>>();
 
-        if (processor.isTrusted(preKey)) {
+    for (int i=0;i<processors.size();i++) {
+      final KeyExchangeProcessorV2 processor = processors.get(i);
+      final PreKeyEntity           preKey    = preKeys.get(i);
+
+      futures.add(sessionExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws InvalidKeyException {
           processor.processKeyExchangeMessage(preKey, threadId);
-        } else {
-          throw new UntrustedIdentityException("Untrusted identity key!", e164number, preKey.getIdentityKey());
+          return null;
         }
+      }));
+    }
+
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
       }
-    } catch (InvalidKeyException e) {
+    } catch (InterruptedException e) {
       throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof InvalidKeyException) throw new IOException(e.getCause());
+      if (e.getCause() instanceof RuntimeException)    throw (RuntimeException)e.getCause();
+      throw new AssertionError(e);
     }
   }
 
@@ -301,6 +402,51 @@ public class PushTransport extends BaseTransport {
     return builder.build().toByteArray();
   }
 
+  private class MemberDelivery implements Runnable {
+    private final PushServiceSocket socket;
+    private final Recipient         recipient;
+    private final long              threadId;
+    private final byte[]            plaintext;
+
+    private long      latency;
+    private Throwable failure;
+
+    public MemberDelivery(PushServiceSocket socket, Recipient recipient, long threadId, byte[] plaintext) {
+      this.socket    = socket;
+      this.recipient = recipient;
+      this.threadId  = threadId;
+      this.plaintext = plaintext;
+    }
+
+    @Override
+    public void run() {
+      long startTime = System.currentTimeMillis();
+
+      try {
+        deliver(socket, recipient, threadId, plaintext);
+      } catch (UntrustedIdentityException e) {
+        Log.w("PushTransport", e);
+        failure = e;
+      } catch (IOException e) {
+        Log.w("PushTransport", e);
+        failure = e;
+      } catch (InvalidNumberException e) {
+        Log.w("PushTransport", e);
+        failure = e;
+      }
+
+      latency = System.currentTimeMillis() - startTime;
+    }
+
+    public long getLatency() {
+      return latency;
+    }
+
+    public Throwable getFailure() {
+      return failure;
+    }
+  }
+
   private OutgoingPushMessageList getEncryptedMessages(PushServiceSocket socket, long threadId,
                                                        Recipient recipient, byte[] plaintext)
       throws IOException, InvalidNumberException, UntrustedIdentityException
@@ -328,22 +474,14 @@ public class PushTransport extends BaseTransport {
       throws IOException, UntrustedIdentityException
   {
     if (!SessionRecordV2.hasSession(context, masterSecret, pushAddress)) {
-      try {
-        List<PreKeyEntity> preKeys = socket.getPreKeys(pushAddress);
-
-        for (PreKeyEntity preKey : preKeys) {
-          PushAddress            device    = PushAddress.create(context, pushAddress.getRecipientId(), pushAddress.getNumber(), preKey.getDeviceId());
-          KeyExchangeProcessorV2 processor = new KeyExchangeProcessorV2(context, masterSecret, device);
+      List<PreKeyEntity> preKeys = socket.getPreKeys(pushAddress);
+      List<PushAddress>  devices = new ArrayList<PushAddress>(preKeys.size());
 
-          if (processor.isTrusted(preKey)) {
-            processor.processKeyExchangeMessage(preKey, threadId);
-          } else {
-            throw new UntrustedIdentityException("Untrusted identity key!", pushAddress.getNumber(), preKey.getIdentityKey());
-          }
-        }
-      } catch (InvalidKeyException e) {
-        throw new IOException(e);
+      for (PreKeyEntity preKey : preKeys) {
+        devices.add(PushAddress.create(context, pushAddress.getRecipientId(), pushAddress.getNumber(), preKey.getDeviceId()));
       }
+
+      processPreKeys(threadId, pushAddress.getNumber(), devices, preKeys);
     }
 
     SessionCipher     cipher  = SessionCipher.createFor(context, masterSecret, pushAddress);
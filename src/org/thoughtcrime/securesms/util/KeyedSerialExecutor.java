@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs tasks on a shared pool of threads, while guaranteeing that tasks
+ * submitted with the same key run one at a time, in submission order.
+ *
+ * Each key is given at most one pool thread at a time, and after every task
+ * the next task for that key is resubmitted to the back of the pool's queue,
+ * so a long backlog from one key can't starve the others.
+ */
+public class KeyedSerialExecutor {
+
+  private final String                            name;
+  private final Executor                          executor;
+  private final Map<Object, LinkedList<TimedTask>> queues = new HashMap<Object, LinkedList<TimedTask>>();
+
+  private int  queueDepth;
+  private long completedCount;
+  private long totalLatencyMillis;
+
+  public KeyedSerialExecutor(String name, int threadCount) {
+    this.name     = name;
+    this.executor = Executors.newFixedThreadPool(threadCount);
+  }
+
+  public void execute(Object key, Runnable task) {
+    TimedTask timedTask = new TimedTask(key, task);
+
+    synchronized (this) {
+      LinkedList<TimedTask> queue = queues.get(key);
+
+      queueDepth++;
+
+      if (queue != null) {
+        queue.add(timedTask);
+        return;
+      }
+
+      queues.put(key, new LinkedList<TimedTask>());
+    }
+
+    executor.execute(timedTask);
+  }
+
+  /**
+   * @return the number of tasks that have been submitted but not yet completed.
+   */
+  public synchronized int getQueueDepth() {
+    return queueDepth;
+  }
+
+  /**
+   * @return the mean time from submission to completion over all completed tasks.
+   */
+  public synchronized long getAverageLatencyMillis() {
+    return completedCount == 0 ? 0 : totalLatencyMillis / completedCount;
+  }
+
+  private void onTaskComplete(TimedTask task, long waitMillis, long runMillis) {
+    TimedTask next;
+    int       remaining;
+
+    synchronized (this) {
+      LinkedList<TimedTask> queue = queues.get(task.key);
+
+      next = queue.poll();
+
+      if (next == null) {
+        queues.remove(task.key);
+      }
+
+      queueDepth--;
+      completedCount++;
+      totalLatencyMillis += waitMillis + runMillis;
+      remaining = queueDepth;
+    }
+
+    Log.w(name, "Task waited " + waitMillis + "ms, ran " + runMillis + "ms, " +
+                remaining + " remaining.");
+
+    if (next != null) {
+      executor.execute(next);
+    }
+  }
+
+  private class TimedTask implements Runnable {
+    private final Object   key;
+    private final Runnable task;
+    private final long     submitTime;
+
+    public TimedTask(Object key, Runnable task) {
+      this.key        = key;
+      this.task       = task;
+      this.submitTime = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void run() {
+      long startTime = SystemClock.elapsedRealtime();
+
+      try {
+        task.run();
+      } finally {
+        long endTime = SystemClock.elapsedRealtime();
+        onTaskComplete(this, startTime - submitTime, endTime - startTime);
+      }
+    }
+  }
+}
@@ -43,6 +43,7 @@ public class TextSecurePreferences {
   private static final String SIGNALING_KEY_PREF               = "pref_signaling_key";
   private static final String DIRECTORY_FRESH_TIME_PREF        = "pref_directory_refresh_time";
   private static final String IN_THREAD_NOTIFICATION_PREF      = "pref_key_inthread_notifications";
+  private static final String SEARCH_INDEX_POSITION_PREF       = "pref_search_index_position";
 
   private static final String LOCAL_REGISTRATION_ID_PREF       = "pref_local_registration_id";
   public  static final String ALLOW_SMS_FALLBACK_PREF          = "pref_allow_sms_traffic_out";
@@ -71,6 +72,14 @@ public class TextSecurePreferences {
     setLongPreference(context, DIRECTORY_FRESH_TIME_PREF, value);
   }
 
+  public static long getSearchIndexPosition(Context context) {
+    return getLongPreference(context, SEARCH_INDEX_POSITION_PREF, -1L);
+  }
+
+  public static void setSearchIndexPosition(Context context, long value) {
+    setLongPreference(context, SEARCH_INDEX_POSITION_PREF, value);
+  }
+
   public static String getLocalNumber(Context context) {
     return getStringPreference(context, LOCAL_NUMBER_PREF, "No Stored Number");
   }
@@ -34,6 +34,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -72,6 +73,18 @@ public class Util {
     return executor;
   }
 
+  /**
+   * A fixed-size pool whose threads exit once they've been idle for a while,
+   * for work that comes in bursts and shouldn't pin threads between them.
+   */
+  public static ExecutorService newIdleTimeoutExecutor(int threadCount) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                                                         30, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   public static boolean isEmpty(EncodedStringValue[] value) {
     return value == null || value.length == 0;
   }
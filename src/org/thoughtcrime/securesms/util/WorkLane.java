@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.util;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedList;
+
+/**
+ * A FIFO work queue drained by a fixed number of threads running at a given
+ * priority.  Work in one lane never waits behind work in another, so slow
+ * jobs can be given a lane of their own.
+ */
+public class WorkLane {
+
+  private final String                name;
+  private final LinkedList<TimedWork> queue = new LinkedList<TimedWork>();
+
+  private long completedCount;
+  private long totalWaitMillis;
+
+  public WorkLane(String name, int threadCount, int threadPriority) {
+    this.name = name;
+
+    for (int i=0;i<threadCount;i++) {
+      new LaneThread(name + "-" + i, threadPriority).start();
+    }
+  }
+
+  public void execute(Runnable work) {
+    synchronized (queue) {
+      queue.add(new TimedWork(work));
+      queue.notifyAll();
+    }
+  }
+
+  /**
+   * @return the number of work items waiting for a thread.
+   */
+  public int getQueueDepth() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  /**
+   * @return the mean time work items have waited for a thread.
+   */
+  public long getAverageWaitMillis() {
+    synchronized (queue) {
+      return completedCount == 0 ? 0 : totalWaitMillis / completedCount;
+    }
+  }
+
+  private TimedWork getWork() {
+    synchronized (queue) {
+      try {
+        while (queue.isEmpty())
+          queue.wait();
+
+        TimedWork work     = queue.removeFirst();
+        long      waitTime = SystemClock.elapsedRealtime() - work.queuedTime;
+
+        completedCount++;
+        totalWaitMillis += waitTime;
+
+        Log.w(name, "Work waited " + waitTime + "ms, " + queue.size() + " queued.");
+        return work;
+      } catch (InterruptedException ie) {
+        throw new AssertionError(ie);
+      }
+    }
+  }
+
+  private static class TimedWork {
+    private final Runnable work;
+    private final long     queuedTime;
+
+    public TimedWork(Runnable work) {
+      this.work       = work;
+      this.queuedTime = SystemClock.elapsedRealtime();
+    }
+  }
+
+  private class LaneThread extends Thread {
+    private final int threadPriority;
+
+    public LaneThread(String name, int threadPriority) {
+      super(name);
+      this.threadPriority = threadPriority;
+    }
+
+    @Override
+    public void run() {
+      Process.setThreadPriority(threadPriority);
+
+      for (;;)
+        getWork().work.run();
+    }
+  }
+}